@@ -0,0 +1,61 @@
+package com.benjft.activemattertool.simulation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a single frame of Delta N sampling across system sizes, packing fractions, sample sizes and estimators.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessDeltaNBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int Nt;
+
+    @Param({"0.1", "0.2", "0.4", "0.8"})
+    double packingFraction;
+
+    @Param({"10", "160", "640"})
+    int Nl;
+
+    @Param({"MONTE_CARLO", "BOX_COUNT"})
+    ProcessDeltaN.Estimator estimator;
+
+    Simulation sim;
+    ProcessDeltaN process;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sim = Simulation.newInstance(packingFraction, Nt, 0.1, 2, 0.025, 0.005, 0.05, 0);
+        // the processor is called directly below, rather than following the simulation
+        process = ProcessDeltaN.newDetached(sim, Nl, 0, estimator);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sim.close();
+    }
+
+    @Benchmark
+    public Object getUpdatedValue() {
+        return process.getUpdatedValue(sim.getParticles(), sim.getGrid());
+    }
+}
@@ -0,0 +1,103 @@
+package com.benjft.activemattertool.simulation;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stages of a simulation step across a range of system sizes and packing fractions.
+ * <p>
+ * Besides the time per call, each benchmark reports the time per particle-step through the particleSteps counter, and
+ * the gc profiler (enabled by the jmh task) reports the allocation per call as gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimulationBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int Nt;
+
+    @Param({"0.1", "0.2", "0.4", "0.8"})
+    double packingFraction;
+
+    // 0 finds collisions from the cell list. The benchmarks repeat the same state, so a neighbour list is only built
+    // once and they measure the scan alone, not the rebuilds a running simulation pays for
+    @Param({"0", "0.3"})
+    double skin;
+
+    Simulation sim;
+    // the particles and grid used by the formToGrid benchmark, kept apart from those the simulation steps with
+    ParticleStore store, target;
+    CellList grid;
+    double[] deltaX, deltaY, deltaTheta;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sim = Simulation.newInstance(packingFraction, Nt, 0.1, 2, 0.025, 0.005, 0.05, 0);
+        sim.setNeighbourSkin(skin);
+        // take a few steps so the particles are no longer a uniform scatter
+        for (int i = 0; i < 10; ++i) {
+            sim.advance()
+               .get();
+        }
+        store = new ParticleStore(Nt);
+        target = new ParticleStore(Nt);
+        sim.integrate(sim.getParticles(), sim.getGrid(), store);
+        grid = new CellList(sim.getNCols(), sim.getNRows(), Nt);
+        deltaX = new double[Nt];
+        deltaY = new double[Nt];
+        deltaTheta = new double[Nt];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sim.close();
+    }
+
+    /**
+     * Counts the particles processed, so the results can be read as a time per particle-step.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ParticleSteps {
+        public long particleSteps;
+    }
+
+    @Benchmark
+    public ParticleStore integrate(ParticleSteps counter) {
+        counter.particleSteps += Nt;
+        sim.integrate(sim.getParticles(), sim.getGrid(), target);
+        return target;
+    }
+
+    @Benchmark
+    public ParticleStore formToGrid(ParticleSteps counter) {
+        counter.particleSteps += Nt;
+        // the result is the store that was used as scratch space, so feeding it back in alternates between the two
+        store = sim.formToGrid(store, grid);
+        return store;
+    }
+
+    @Benchmark
+    public void getDeltas(ParticleSteps counter) {
+        counter.particleSteps += Nt;
+        sim.getDeltas(sim.getParticles(), sim.getGrid(), 0, 1, deltaX, deltaY, deltaTheta);
+    }
+}
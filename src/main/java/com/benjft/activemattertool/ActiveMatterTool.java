@@ -1,22 +1,331 @@
 package com.benjft.activemattertool;
 
+import com.benjft.activemattertool.batch.HeadlessRunner;
+import com.benjft.activemattertool.batch.SweepConfig;
+import com.benjft.activemattertool.batch.SweepRunner;
 import com.benjft.activemattertool.screen.DeltaNPlotter;
+import com.benjft.activemattertool.simulation.ProcessDeltaN;
+import com.benjft.activemattertool.simulation.ProcessMultiScaleDeltaN;
+import com.benjft.activemattertool.simulation.Simulation;
+import com.benjft.activemattertool.simulation.SlabCoordinator;
+import com.benjft.activemattertool.simulation.TimeAverage;
+import com.benjft.activemattertool.trajectory.Encoding;
+import com.benjft.activemattertool.trajectory.TrajectoryReader;
 import javafx.application.Application;
 import javafx.stage.Stage;
 
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 /**
- * Main class, app launches from here.
+ * Main class, app launches from here. Without any of the options below the simulations are shown in a display, which
+ * takes its parameters from a sweep file given by --config. Otherwise options are given as --name value pairs:
+ * <ul>
+ * <li>--headless runs the simulations without a display, taking --phi, --nl (comma separated lists), --nt, --speed,
+ * --k, --dpos, --dang, --dtime, --seed, --threads, --workers, --steps, --time (seconds), --every, --output and
+ * --estimator (monte_carlo or box_count). Monte-carlo sampling of a frame runs until the estimate converges, unless
+ * --time-budget caps it at so many milliseconds, which makes results depend on the speed of the machine. Optionally:
+ * <ul>
+ * <li>--trajectory (a directory) records trajectories, with --stride and --encoding (float32 or int16)</li>
+ * <li>--checkpoint (a directory) writes checkpoints every --checkpoint-every steps</li>
+ * <li>--metrics measures the performance of each simulation, readable through JMX and printed every so many
+ * seconds if a value is given</li>
+ * <li>--skin finds collisions from neighbour lists with the given skin</li>
+ * <li>--average (block or exponential, weighting each new frame by --average-weight) sets how Delta N is averaged
+ * over time, from step --burn-in on</li>
+ * <li>--series (a directory) writes the Delta N of every processed frame to files</li>
+ * <li>--frames limits the frames held by each simulation, bounding the memory of large systems</li>
+ * </ul>
+ * </li>
+ * <li>--slabs with a number of worker processes splits each simulation into that many slabs, each stepped by its own
+ * JVM, taking --phi, --nl, --nt, --speed, --k, --dpos, --dang, --dtime, --seed, --threads (per worker), --steps,
+ * --every, --output and --worker-memory (the heap of each worker, such as 4g).</li>
+ * <li>--sweep with a config file runs every simulation of a parameter sweep, see {@link SweepConfig}, taking --output
+ * (a directory, where a sweep that was stopped is resumed from) and --workers. Parameters the file leaves out take the
+ * same defaults as the display.</li>
+ * <li>--replay with a trajectory file calculates the Delta N of every recorded frame, taking --nl, --threads and
+ * --output.</li>
+ * </ul>
+ * This class is not itself a JavaFX application, as the java launcher starts the toolkit (which needs a display)
+ * before calling main on those.
  */
-public class ActiveMatterTool extends Application {
-    public static void main(String[] args) {
-        Application.launch(args);
+public class ActiveMatterTool {
+    private static final double[] PACKING_FRACTIONS = {0.2, 0.3, 0.4, 0.5};
+    private static final int[] NLS = {10, 20, 40, 80, 160, 320, 640, 1280, 2560, 5120};
+    private static final int NT = 10000;
+    private static final double SPEED = 0.1, K = 2, D_POS = 0.025, D_ANG = 0.005, D_TIME = 0.05;
+    private static final long SEED = 0;
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args)
+                  .contains("--headless")) {
+            runHeadless(parseOptions(args));
+            System.exit(0);
+        } else if (Arrays.asList(args)
+                         .contains("--slabs")) {
+            runSlabs(parseOptions(args));
+            System.exit(0);
+        } else if (Arrays.asList(args)
+                         .contains("--sweep")) {
+            runSweep(parseOptions(args));
+            System.exit(0);
+        } else if (Arrays.asList(args)
+                         .contains("--replay")) {
+            runReplay(parseOptions(args));
+            System.exit(0);
+        } else {
+            Application.launch(Gui.class, args);
+        }
+    }
+
+    /**
+     * The JavaFX application showing the simulations
+     */
+    public static class Gui extends Application {
+        @Override
+        public void start(Stage primaryStage) throws Exception {
+            Map<String, String> options = parseOptions(this.getParameters()
+                                                           .getRaw()
+                                                           .toArray(new String[0]));
+            if (!options.containsKey("config")) {
+                DeltaNPlotter plotter = new DeltaNPlotter(primaryStage, PACKING_FRACTIONS, NLS, NT, SPEED, K, D_POS,
+                        D_ANG, D_TIME, SEED);
+                return;
+            }
+            // every packing fraction of the sweep is shown, with the rest of the parameters of its first run
+            SweepConfig config = SweepConfig.read(Paths.get(options.get("config")), getDefaults());
+            SweepConfig.Run run = config.getRuns()
+                                        .get(0);
+            DeltaNPlotter plotter = new DeltaNPlotter(primaryStage, config.getPackingFractions(), config.getNls(),
+                    run.getNt(), run.getSpeed(), run.getK(), run.getDPos(), run.getDAng(), run.getDTime(),
+                    run.getSweepSeed());
+        }
+    }
+
+    /**
+     * @return the values of sweep parameters left out of a config file
+     */
+    private static Map<String, String> getDefaults() {
+        Map<String, String> defaults = new HashMap<>();
+        defaults.put("phi", Arrays.stream(PACKING_FRACTIONS)
+                                  .mapToObj(String::valueOf)
+                                  .collect(Collectors.joining(",")));
+        defaults.put("nl", Arrays.stream(NLS)
+                                 .mapToObj(String::valueOf)
+                                 .collect(Collectors.joining(",")));
+        defaults.put("nt", String.valueOf(NT));
+        defaults.put("speed", String.valueOf(SPEED));
+        defaults.put("k", String.valueOf(K));
+        defaults.put("dpos", String.valueOf(D_POS));
+        defaults.put("dang", String.valueOf(D_ANG));
+        defaults.put("dtime", String.valueOf(D_TIME));
+        defaults.put("seed", String.valueOf(SEED));
+        return defaults;
+    }
+
+    /**
+     * runs the simulations without a display
+     *
+     * @param options the command line options
+     * @throws Exception if the results can't be written
+     */
+    private static void runHeadless(Map<String, String> options) throws Exception {
+        double[] packingFractions = options.containsKey("phi") ? Arrays.stream(options.get("phi")
+                                                                                         .split(","))
+                                                                      .mapToDouble(Double::parseDouble)
+                                                                      .toArray() : PACKING_FRACTIONS;
+        int[] Nls = options.containsKey("nl") ? Arrays.stream(options.get("nl")
+                                                                     .split(","))
+                                                      .mapToInt(Integer::parseInt)
+                                                      .toArray() : NLS;
+
+        HeadlessRunner runner = new HeadlessRunner(packingFractions, Nls,
+                Integer.parseInt(options.getOrDefault("nt", String.valueOf(NT))),
+                Double.parseDouble(options.getOrDefault("speed", String.valueOf(SPEED))),
+                Double.parseDouble(options.getOrDefault("k", String.valueOf(K))),
+                Double.parseDouble(options.getOrDefault("dpos", String.valueOf(D_POS))),
+                Double.parseDouble(options.getOrDefault("dang", String.valueOf(D_ANG))),
+                Double.parseDouble(options.getOrDefault("dtime", String.valueOf(D_TIME))),
+                Long.parseLong(options.getOrDefault("seed", String.valueOf(SEED))),
+                Integer.parseInt(options.getOrDefault("threads", "1")),
+                Integer.parseInt(options.getOrDefault("workers", String.valueOf(Runtime.getRuntime()
+                                                                                      .availableProcessors()))),
+                ProcessDeltaN.Estimator.valueOf(options.getOrDefault("estimator", "monte_carlo")
+                                                       .toUpperCase(Locale.ROOT)));
+
+        if (options.containsKey("trajectory")) {
+            runner.recordTrajectories(Paths.get(options.get("trajectory")),
+                    Integer.parseInt(options.getOrDefault("stride", "10")),
+                    Encoding.valueOf(options.getOrDefault("encoding", "float32")
+                                            .toUpperCase(Locale.ROOT)));
+        }
+
+        if (options.containsKey("checkpoint")) {
+            runner.checkpoint(Paths.get(options.get("checkpoint")),
+                    Long.parseLong(options.getOrDefault("checkpoint-every", "10000")));
+        }
+
+        if (options.containsKey("time-budget")) {
+            runner.setTimeBudget(TimeUnit.MILLISECONDS.toNanos(Long.parseLong(options.get("time-budget"))));
+        }
+
+        if (options.containsKey("frames")) {
+            runner.limitFrames(Integer.parseInt(options.get("frames")));
+        }
+
+        if (options.containsKey("skin")) {
+            runner.useNeighbourLists(Double.parseDouble(options.get("skin")));
+        }
+
+        runner.averageWith(TimeAverage.Mode.valueOf(options.getOrDefault("average", "block")
+                                                           .toUpperCase(Locale.ROOT)),
+                Double.parseDouble(options.getOrDefault("average-weight", "0.05")));
+
+        if (options.containsKey("burn-in")) {
+            runner.burnIn(Long.parseLong(options.get("burn-in")));
+        }
+
+        if (options.containsKey("series")) {
+            runner.streamSeries(Paths.get(options.get("series")));
+        }
+
+        if (options.containsKey("metrics")) {
+            String period = options.get("metrics");
+            runner.measure(period.isEmpty() ? 0 : Double.parseDouble(period));
+        }
+
+        runner.run(Long.parseLong(options.getOrDefault("steps", "0")),
+                Double.parseDouble(options.getOrDefault("time", "0")),
+                Integer.parseInt(options.getOrDefault("every", "100")),
+                Paths.get(options.getOrDefault("output", "deltaN.csv")));
+    }
+
+    /**
+     * runs each simulation split across worker processes, one simulation at a time
+     *
+     * @param options the command line options
+     * @throws Exception if the workers fail or the results can't be written
+     */
+    private static void runSlabs(Map<String, String> options) throws Exception {
+        double[] packingFractions = options.containsKey("phi") ? Arrays.stream(options.get("phi")
+                                                                                         .split(","))
+                                                                      .mapToDouble(Double::parseDouble)
+                                                                      .toArray() : PACKING_FRACTIONS;
+        double[] Nls = options.containsKey("nl") ? Arrays.stream(options.get("nl")
+                                                                        .split(","))
+                                                         .mapToDouble(Double::parseDouble)
+                                                         .toArray() : Arrays.stream(NLS)
+                                                                            .asDoubleStream()
+                                                                            .toArray();
+        int nSlabs = Integer.parseInt(options.get("slabs"));
+        int nThreads = Integer.parseInt(options.getOrDefault("threads", "1"));
+        long steps = Long.parseLong(options.getOrDefault("steps", "1000"));
+        int every = Integer.parseInt(options.getOrDefault("every", "100"));
+        String[] jvmOptions = options.containsKey("worker-memory") ? new String[]{"-Xmx" + options.get(
+                "worker-memory")} : new String[0];
+
+        Random random = new Random(Long.parseLong(options.getOrDefault("seed", String.valueOf(SEED))));
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(options.getOrDefault("output",
+                "deltaN.csv"))))) {
+            writer.println("step,packingFraction,Nl,deltaN");
+            for (double packingFraction : packingFractions) {
+                // the workers scatter the particles themselves, so no process holds the whole system
+                try (SlabCoordinator coordinator = SlabCoordinator.newInstance(packingFraction,
+                        Integer.parseInt(options.getOrDefault("nt", String.valueOf(NT))),
+                        Double.parseDouble(options.getOrDefault("speed", String.valueOf(SPEED))),
+                        Double.parseDouble(options.getOrDefault("k", String.valueOf(K))),
+                        Double.parseDouble(options.getOrDefault("dpos", String.valueOf(D_POS))),
+                        Double.parseDouble(options.getOrDefault("dang", String.valueOf(D_ANG))),
+                        Double.parseDouble(options.getOrDefault("dtime", String.valueOf(D_TIME))),
+                        random.nextLong(), nSlabs, nThreads, jvmOptions)) {
+                    final long start = coordinator.getStep();
+                    List<double[]> results = coordinator.run(steps, every, Nls);
+                    for (int frame = 0; frame < results.size(); ++frame) {
+                        long step = start + Math.min((long) (frame + 1) * every, steps);
+                        for (int j = 0; j < Nls.length; ++j) {
+                            writer.printf(Locale.ROOT, "%d,%.6f,%s,%.6f%n", step, packingFraction, Nls[j],
+                                    results.get(frame)[j]);
+                        }
+                    }
+                    writer.flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * runs a parameter sweep read from a config file, resuming it if it was started before
+     *
+     * @param options the command line options
+     * @throws Exception if the config or manifest can't be read or the results can't be written
+     */
+    private static void runSweep(Map<String, String> options) throws Exception {
+        SweepConfig config = SweepConfig.read(Paths.get(options.get("sweep")), getDefaults());
+        SweepRunner runner = new SweepRunner(config, Paths.get(options.getOrDefault("output", "sweep")),
+                Integer.parseInt(options.getOrDefault("workers", String.valueOf(Runtime.getRuntime()
+                                                                                      .availableProcessors()))));
+        runner.run();
+    }
+
+    /**
+     * calculates the Delta N of every frame of a recorded trajectory
+     *
+     * @param options the command line options
+     * @throws Exception if the trajectory can't be read or the results can't be written
+     */
+    private static void runReplay(Map<String, String> options) throws Exception {
+        double[] Nls = options.containsKey("nl") ? Arrays.stream(options.get("nl")
+                                                                        .split(","))
+                                                         .mapToDouble(Double::parseDouble)
+                                                         .toArray() : Arrays.stream(NLS)
+                                                                            .asDoubleStream()
+                                                                            .toArray();
+        int nThreads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime()
+                                      .availableProcessors())));
+
+        try (TrajectoryReader reader = new TrajectoryReader(Paths.get(options.get("replay")));
+             PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(options.getOrDefault("output",
+                     "replay.csv"))))) {
+            Simulation sim = reader.newSimulation();
+            List<double[]> results = reader.replay(sim, 0, reader.getNFrames(),
+                    () -> ProcessMultiScaleDeltaN.newDetached(sim, Nls), nThreads);
+
+            writer.println("step,packingFraction,Nl,deltaN");
+            for (int frame = 0; frame < results.size(); ++frame) {
+                for (int j = 0; j < Nls.length; ++j) {
+                    writer.printf(Locale.ROOT, "%d,%.6f,%s,%.6f%n", reader.getStep(frame), sim.getPackingFraction(),
+                            Nls[j], results.get(frame)[j]);
+                }
+            }
+            sim.close();
+        }
     }
 
-    @Override
-    public void start(Stage primaryStage) throws Exception {
-        // TODO: setup input
-        DeltaNPlotter plotter = new DeltaNPlotter(primaryStage, new double[]{0.2, 0.3, 0.4, 0.5}, new
-                int[]{10, 20, 40, 80, 160, 320, 640, 1280, 2560, 5120}, 10000, 0.1, 2, 0.025,
-                0.005, 0.05, 0);
+    /**
+     * reads command line arguments of the form --name value, flags without a value are mapped to an empty string
+     *
+     * @param args the command line arguments
+     * @return the options by name
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; ++i) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("unexpected argument: " + args[i]);
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) options.put(name, args[++i]);
+            else options.put(name, "");
+        }
+        return options;
     }
 }
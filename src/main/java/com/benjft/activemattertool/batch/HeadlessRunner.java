@@ -0,0 +1,361 @@
+package com.benjft.activemattertool.batch;
+
+import com.benjft.activemattertool.simulation.Checkpointer;
+import com.benjft.activemattertool.simulation.Ensemble;
+import com.benjft.activemattertool.simulation.ProcessDeltaN;
+import com.benjft.activemattertool.simulation.ProcessMultiScaleDeltaN;
+import com.benjft.activemattertool.simulation.Simulation;
+import com.benjft.activemattertool.simulation.SimulationMetrics;
+import com.benjft.activemattertool.simulation.TimeAverage;
+import com.benjft.activemattertool.trajectory.Encoding;
+import com.benjft.activemattertool.trajectory.TrajectoryWriter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Runs a set of simulations without a display, stepping them as fast as possible on a shared {@link Ensemble} and
+ * writing the Delta N of each to a file. Simulations and processors are seeded in the same order as {@link
+ * com.benjft.activemattertool.screen.DeltaNPlotter}, so the same master seed gives the same runs.
+ */
+public class HeadlessRunner {
+
+    private final double[] packingFractions;
+    private final int[] Nls;
+    private final Simulation[] simulations;
+    // one processor per Nl for the monte-carlo estimator, or one for all Nls when box counting
+    private final ProcessDeltaN[][] processors;
+    private final ProcessMultiScaleDeltaN[] multiScaleProcessors;
+    private final List<TrajectoryWriter> trajectories = new ArrayList<>();
+    private final List<Checkpointer> checkpointers = new ArrayList<>();
+    private final int nWorkers;
+
+    /**
+     * creates the simulations and their processors
+     *
+     * @param packingFractions the packing fractions to use
+     * @param Nls              the target average numbers for sampling subsystems
+     * @param Nt               the total number in each sim
+     * @param speed            the self propulsion speed
+     * @param k                the interaction strength
+     * @param dPos             the noise in position
+     * @param dAng             the noise in heading
+     * @param dTime            the integration time-step
+     * @param masterSeed       seed to generate simulations from
+     * @param nThreads         the number of threads each simulation uses for collisions
+     * @param nWorkers         the number of threads shared between all simulations for stepping and processing
+     * @param estimator        how the Delta N is estimated, box counting shares one table between every Nl
+     */
+    public HeadlessRunner(double[] packingFractions, int[] Nls, int Nt, double speed, double k, double dPos,
+                          double dAng, double dTime, long masterSeed, int nThreads, int nWorkers,
+                          ProcessDeltaN.Estimator estimator) {
+        this.nWorkers = nWorkers;
+        this.packingFractions = packingFractions;
+        this.Nls = Nls;
+        this.simulations = new Simulation[packingFractions.length];
+        this.processors = new ProcessDeltaN[packingFractions.length][Nls.length];
+        this.multiScaleProcessors = new ProcessMultiScaleDeltaN[packingFractions.length];
+
+        Random random = new Random(masterSeed);
+        for (int i = 0; i < packingFractions.length; ++i) {
+            Simulation sim = Simulation.newInstance(packingFractions[i], Nt, speed, k, dPos, dAng, dTime,
+                    random.nextLong());
+            sim.setThreads(nThreads);
+            // a seed is drawn for every Nl either way, so the simulations are the same whichever estimator is used
+            for (int j = 0; j < Nls.length; ++j) {
+                long seed = random.nextLong();
+                if (estimator == ProcessDeltaN.Estimator.MONTE_CARLO)
+                    processors[i][j] = new ProcessDeltaN(sim, Nls[j], seed, estimator);
+            }
+            if (estimator == ProcessDeltaN.Estimator.BOX_COUNT)
+                multiScaleProcessors[i] = new ProcessMultiScaleDeltaN(sim, Arrays.stream(Nls)
+                                                                               .asDoubleStream()
+                                                                               .toArray());
+            simulations[i] = sim;
+        }
+    }
+
+    /**
+     * records the trajectory of every simulation while running, to files named trajectory-0.amt, trajectory-1.amt and
+     * so on in the order of the packing fractions
+     *
+     * @param directory the directory to write the files to
+     * @param stride    the number of steps between recorded frames
+     * @param encoding  how particle values are stored
+     * @throws IOException if a file can't be created
+     */
+    public void recordTrajectories(Path directory, int stride, Encoding encoding) throws IOException {
+        Files.createDirectories(directory);
+        for (int i = 0; i < simulations.length; ++i) {
+            trajectories.add(new TrajectoryWriter(simulations[i], directory.resolve("trajectory-" + i + ".amt"), stride,
+                    encoding));
+        }
+    }
+
+    /**
+     * checkpoints every simulation while running, and once more when the run ends, to files named checkpoint-0.amc,
+     * checkpoint-1.amc and so on in the order of the packing fractions
+     *
+     * @param directory the directory to write the files to
+     * @param every     the number of steps between checkpoints
+     * @throws IOException if the directory can't be created
+     */
+    public void checkpoint(Path directory, long every) throws IOException {
+        Files.createDirectories(directory);
+        for (int i = 0; i < simulations.length; ++i) {
+            checkpointers.add(new Checkpointer(simulations[i], directory.resolve("checkpoint-" + i + ".amc"), every));
+        }
+    }
+
+    /**
+     * finds the collisions of every simulation from a Verlet neighbour list, see {@link
+     * Simulation#setNeighbourSkin(double)}
+     *
+     * @param skin the distance beyond contact to list neighbours from
+     */
+    public void useNeighbourLists(double skin) {
+        for (Simulation sim : simulations) {
+            sim.setNeighbourSkin(skin);
+        }
+    }
+
+    /**
+     * caps the time monte-carlo sampling of each frame may take, see {@link ProcessDeltaN#setTimeBudget(long)}. Results
+     * then depend on the speed of the machine as well as the seed
+     *
+     * @param timeBudget the time in nanoseconds, or 0 for no limit
+     */
+    public void setTimeBudget(long timeBudget) {
+        for (ProcessDeltaN[] simProcessors : processors) {
+            for (ProcessDeltaN processor : simProcessors) {
+                if (processor != null) processor.setTimeBudget(timeBudget);
+            }
+        }
+    }
+
+    /**
+     * limits the frames every simulation holds, bounding the memory used by large systems, see {@link
+     * Simulation#setMaxFrames(int)}
+     *
+     * @param maxFrames the most frames each simulation may hold
+     */
+    public void limitFrames(int maxFrames) {
+        for (Simulation sim : simulations) {
+            sim.setMaxFrames(maxFrames);
+        }
+    }
+
+    /**
+     * sets how every processor averages Delta N over time
+     *
+     * @param mode   how frames are weighted in the average
+     * @param weight the weight of each new frame for {@link TimeAverage.Mode#EXPONENTIAL} averages
+     */
+    public void averageWith(TimeAverage.Mode mode, double weight) {
+        for (TimeAverage average : this.getTimeAverages()) {
+            average.setMode(mode);
+            average.setWeight(weight);
+        }
+    }
+
+    /**
+     * leaves the frames before a step out of every processor's time average, see {@link
+     * ProcessDeltaN#setBurnIn(long)}
+     *
+     * @param burnIn the first step to average
+     */
+    public void burnIn(long burnIn) {
+        for (int i = 0; i < simulations.length; ++i) {
+            if (multiScaleProcessors[i] != null) multiScaleProcessors[i].setBurnIn(burnIn);
+            else for (ProcessDeltaN processor : processors[i]) {
+                processor.setBurnIn(burnIn);
+            }
+        }
+    }
+
+    /**
+     * writes the Delta N of every frame processed while running, to files named series-0.csv, series-1.csv and so on
+     * in the order of the packing fractions, each with a row for every Nl of each frame
+     *
+     * @param directory the directory to write the files to
+     * @throws IOException if a file can't be created
+     */
+    public void streamSeries(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (int i = 0; i < simulations.length; ++i) {
+            if (multiScaleProcessors[i] != null) {
+                multiScaleProcessors[i].streamSeries(directory.resolve("series-" + i + ".csv"));
+            } else {
+                // each monte-carlo processor works on its own frames, so gets a file of its own
+                for (int j = 0; j < Nls.length; ++j) {
+                    processors[i][j].streamSeries(directory.resolve("series-" + i + "-" + Nls[j] + ".csv"));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the time average of every processor, for every Nl of every simulation
+     */
+    private List<TimeAverage> getTimeAverages() {
+        List<TimeAverage> averages = new ArrayList<>();
+        for (int i = 0; i < simulations.length; ++i) {
+            for (int j = 0; j < Nls.length; ++j) {
+                averages.add(multiScaleProcessors[i] != null ? multiScaleProcessors[i].getTimeAverage(j)
+                                                             : processors[i][j].getTimeAverage());
+            }
+        }
+        return averages;
+    }
+
+    /**
+     * measures the performance of every simulation while running, readable through JMX as simulations named sim-0,
+     * sim-1 and so on in the order of the packing fractions
+     *
+     * @param period the seconds between each line of metrics printed for each simulation, or 0 to print none
+     */
+    public void measure(double period) {
+        for (int i = 0; i < simulations.length; ++i) {
+            SimulationMetrics metrics = simulations[i].getMetrics();
+            metrics.setEnabled(true);
+            metrics.register("sim-" + i);
+            if (period > 0) metrics.startLogging("sim-" + i, (long) (period * 1e9), TimeUnit.NANOSECONDS, System.out);
+        }
+    }
+
+    /**
+     * steps every simulation until either limit is reached, writing the results of each simulation at a regular
+     * interval, from the first frame its processors finish at or after each multiple of every steps. The simulations
+     * take turns on the ensemble's workers, so no more threads than given are kept busy.
+     *
+     * @param maxSteps   the number of steps to take, or 0 for no limit
+     * @param maxSeconds the wall time to run for, or 0 for no limit
+     * @param every      the number of steps between each set of results
+     * @param output     the file to write results to
+     * @throws IOException          if the results can't be written
+     * @throws InterruptedException if interrupted while waiting for the simulations
+     */
+    public void run(long maxSteps, double maxSeconds, int every, Path output) throws IOException,
+            InterruptedException {
+        final long start = System.nanoTime();
+        final long maxNanos = maxSeconds > 0 ? (long) (maxSeconds * 1e9) : Long.MAX_VALUE;
+
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(output))) {
+            writer.println("step,packingFraction,Nl,mean,deltaN,averageDeltaN,error,tau");
+            // rows are written in the order they are handed over, so rows of different processors aren't interleaved
+            final ExecutorService rows = Executors.newSingleThreadExecutor();
+            try (Ensemble ensemble = new Ensemble(nWorkers)) {
+                long memory = 0;
+                for (int i = 0; i < simulations.length; ++i) {
+                    if (multiScaleProcessors[i] != null) {
+                        multiScaleProcessors[i].setFrameListener(new Reporter(i, IntStream.range(0, Nls.length)
+                                                                                          .toArray(), every, rows,
+                                writer));
+                    } else for (int j = 0; j < Nls.length; ++j) {
+                        processors[i][j].setFrameListener(new Reporter(i, new int[]{j}, every, rows, writer));
+                    }
+                    memory += simulations[i].getMemoryEstimate();
+                }
+                System.out.printf("at most %d MB of particle data%n", memory >> 20);
+                for (Simulation sim : simulations) {
+                    ensemble.add(sim, maxSteps);
+                }
+                ensemble.awaitCompletion(maxNanos, TimeUnit.NANOSECONDS);
+            } finally {
+                // the ensemble has finished every frame once closed, so no more rows are handed over
+                rows.shutdown();
+                rows.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+            if (writer.checkError()) throw new IOException("failed to write " + output);
+            for (TrajectoryWriter trajectory : trajectories) {
+                trajectory.close();
+            }
+            for (Checkpointer checkpointer : checkpointers) {
+                checkpointer.close();
+            }
+            for (int i = 0; i < simulations.length; ++i) {
+                if (multiScaleProcessors[i] != null) multiScaleProcessors[i].closeSeries();
+                else for (ProcessDeltaN processor : processors[i]) {
+                    processor.closeSeries();
+                }
+            }
+
+            long steps = 0;
+            for (Simulation sim : simulations) {
+                steps += sim.getStep();
+            }
+            System.out.printf("%d steps, %.1f steps/s%n", steps, steps * 1e9 / (System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Writes the results of one processor every so many steps, taking them from the thread that worked on the frame so
+     * every value of a row comes from the same frame. Rows are handed to a single output thread, so neither the
+     * stepping nor the analysis threads wait on the file.
+     */
+    private class Reporter implements LongConsumer {
+        private final int sim;
+        // the target averages of the processor, as positions in Nls
+        private final int[] js;
+        private final int every;
+        private final ExecutorService output;
+        private final PrintWriter writer;
+        // the step of the last frame written, only touched by the thread working on the processor's frames
+        private long reported = 0;
+
+        Reporter(int sim, int[] js, int every, ExecutorService output, PrintWriter writer) {
+            this.sim = sim;
+            this.js = js;
+            this.every = every;
+            this.output = output;
+            this.writer = writer;
+        }
+
+        /**
+         * writes the results of a frame if it is the first worked on since the last multiple of every, frames that
+         * were skipped being stood in for by the next one finished
+         */
+        @Override
+        public void accept(long step) {
+            if (step / every <= reported / every) return;
+            reported = step;
+
+            final double[][] rows = new double[js.length][];
+            for (int r = 0; r < js.length; ++r) {
+                final int j = js[r];
+                double mean, deltaN;
+                TimeAverage average;
+                if (multiScaleProcessors[sim] != null) {
+                    mean = multiScaleProcessors[sim].getMean(j);
+                    deltaN = multiScaleProcessors[sim].getValue(j);
+                    average = multiScaleProcessors[sim].getTimeAverage(j);
+                } else {
+                    mean = processors[sim][j].getMean();
+                    deltaN = processors[sim][j].getValue();
+                    average = processors[sim][j].getTimeAverage();
+                }
+                rows[r] = new double[]{mean, deltaN, average.getAverage(), average.getError(),
+                        average.getAutocorrelationTime()};
+            }
+            output.execute(() -> {
+                for (int r = 0; r < js.length; ++r) {
+                    writer.printf(Locale.ROOT, "%d,%.6f,%d,%.6f,%.6f,%.6f,%.6f,%.2f%n", step, packingFractions[sim],
+                            Nls[js[r]], rows[r][0], rows[r][1], rows[r][2], rows[r][3], rows[r][4]);
+                }
+                writer.flush();
+            });
+        }
+    }
+}
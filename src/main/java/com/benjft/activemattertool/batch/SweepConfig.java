@@ -0,0 +1,372 @@
+package com.benjft.activemattertool.batch;
+
+import com.benjft.activemattertool.simulation.ProcessDeltaN;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The runs of a parameter sweep, read from a properties file. Each simulation parameter takes a single value or a
+ * comma separated list of values:
+ * <pre>
+ * phi = 0.2, 0.3, 0.4, 0.5
+ * nt = 10000
+ * speed = 0.1
+ * k = 2
+ * dpos = 0.025
+ * dang = 0.005
+ * dtime = 0.05
+ * seed = 0
+ * replicas = 4
+ * </pre>
+ * By default every combination of the values is run (mode = grid), while with mode = list the lists are read side by
+ * side, one run for each position, with single values used for every run. Each combination is run once per replica,
+ * the seeds of the replicas being drawn from the combination's seed. Every run measures the same way, set by nl (a
+ * list of target averages), steps, burnin (the steps taken before the first result), every (the steps between
+ * results) and estimator (box_count or monte_carlo).
+ * Parameters left out of the file take the defaults given when reading it.
+ */
+public class SweepConfig {
+    // the simulation parameters, which may be swept over
+    private static final List<String> PARAMETERS = Arrays.asList("phi", "nt", "speed", "k", "dpos", "dang", "dtime",
+            "seed");
+    private static final List<String> SETTINGS = Arrays.asList("mode", "replicas", "nl", "steps", "burnin",
+            "every", "estimator");
+
+    private final List<Run> runs;
+    private final int[] Nls;
+    private final long steps, burnIn;
+    private final int every;
+    private final ProcessDeltaN.Estimator estimator;
+
+    private SweepConfig(List<Run> runs, int[] Nls, long steps, long burnIn, int every,
+                        ProcessDeltaN.Estimator estimator) {
+        this.runs = Collections.unmodifiableList(runs);
+        this.Nls = Nls;
+        this.steps = steps;
+        this.burnIn = burnIn;
+        this.every = every;
+        this.estimator = estimator;
+    }
+
+    /**
+     * reads a sweep from a properties file
+     *
+     * @param path     the file to read
+     * @param defaults the values of parameters left out of the file, by name
+     * @return the sweep
+     * @throws IOException if the file can't be read
+     */
+    public static SweepConfig read(Path path, Map<String, String> defaults) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path)) {
+            properties.load(reader);
+        }
+        Map<String, String> values = new HashMap<>(defaults);
+        for (String name : properties.stringPropertyNames()) {
+            if (!PARAMETERS.contains(name) && !SETTINGS.contains(name))
+                throw new IllegalArgumentException("unknown sweep parameter: " + name);
+            values.put(name, properties.getProperty(name));
+        }
+        return newInstance(values);
+    }
+
+    /**
+     * creates a sweep from the value of each parameter, as they would be written in a file
+     *
+     * @param values the values by name, every simulation parameter must be given
+     * @return the sweep
+     */
+    public static SweepConfig newInstance(Map<String, String> values) {
+        final String[][] lists = new String[PARAMETERS.size()][];
+        for (int p = 0; p < lists.length; ++p) {
+            String value = values.get(PARAMETERS.get(p));
+            if (value == null) throw new IllegalArgumentException("no value given for " + PARAMETERS.get(p));
+            lists[p] = split(value);
+        }
+        final int replicas = Integer.parseInt(values.getOrDefault("replicas", "1")
+                                                    .trim());
+        if (replicas < 1) throw new IllegalArgumentException("replicas must be at least 1");
+
+        // the position in each list of every combination
+        List<int[]> combinations = new ArrayList<>();
+        final String mode = values.getOrDefault("mode", "grid")
+                                  .trim();
+        if (mode.equals("grid")) {
+            int[] position = new int[lists.length];
+            do {
+                combinations.add(position.clone());
+            } while (next(position, lists));
+        } else if (mode.equals("list")) {
+            int length = 1;
+            for (String[] list : lists) {
+                if (list.length == 1) continue;
+                if (length != 1 && list.length != length)
+                    throw new IllegalArgumentException("lists of a list sweep must all be the same length");
+                length = list.length;
+            }
+            for (int i = 0; i < length; ++i) {
+                int[] position = new int[lists.length];
+                for (int p = 0; p < lists.length; ++p) {
+                    position[p] = lists[p].length == 1 ? 0 : i;
+                }
+                combinations.add(position);
+            }
+        } else {
+            throw new IllegalArgumentException("unknown sweep mode: " + mode);
+        }
+
+        List<Run> runs = new ArrayList<>(combinations.size() * replicas);
+        for (int[] position : combinations) {
+            final String[] value = new String[lists.length];
+            for (int p = 0; p < lists.length; ++p) {
+                value[p] = lists[p][position[p]];
+            }
+            // replicas draw their seeds in turn, as the simulations of a headless run do from its master seed
+            final long seed = Long.parseLong(value[7]);
+            final Random random = new Random(seed);
+            for (int replica = 0; replica < replicas; ++replica) {
+                runs.add(new Run(runs.size(), Double.parseDouble(value[0]), Integer.parseInt(value[1]),
+                        Double.parseDouble(value[2]), Double.parseDouble(value[3]), Double.parseDouble(value[4]),
+                        Double.parseDouble(value[5]), Double.parseDouble(value[6]), seed, replica,
+                        random.nextLong()));
+            }
+        }
+
+        int[] Nls = Arrays.stream(split(values.getOrDefault("nl", "10,20,40,80,160,320,640,1280,2560,5120")))
+                          .mapToInt(Integer::parseInt)
+                          .toArray();
+        long steps = Long.parseLong(values.getOrDefault("steps", "10000")
+                                          .trim());
+        int every = Integer.parseInt(values.getOrDefault("every", "100")
+                                           .trim());
+        if (steps < 1 || every < 1) throw new IllegalArgumentException("steps and every must be at least 1");
+        long burnIn = Long.parseLong(values.getOrDefault("burnin", "0")
+                                           .trim());
+        if (burnIn < 0 || burnIn >= steps)
+            throw new IllegalArgumentException("burnin must be at least 0 and less than steps");
+        ProcessDeltaN.Estimator estimator = ProcessDeltaN.Estimator.valueOf(values.getOrDefault("estimator",
+                "box_count")
+                                                                                  .trim()
+                                                                                  .toUpperCase(Locale.ROOT));
+        return new SweepConfig(runs, Nls, steps, burnIn, every, estimator);
+    }
+
+    /**
+     * @return the values of a comma separated list
+     */
+    private static String[] split(String value) {
+        return Arrays.stream(value.split(","))
+                     .map(String::trim)
+                     .filter(s -> !s.isEmpty())
+                     .toArray(String[]::new);
+    }
+
+    /**
+     * moves to the next combination of a grid, the last parameter changing fastest
+     *
+     * @return false once every combination has been visited
+     */
+    private static boolean next(int[] position, String[][] lists) {
+        for (int p = position.length - 1; p >= 0; --p) {
+            if (++position[p] < lists[p].length) return true;
+            position[p] = 0;
+        }
+        return false;
+    }
+
+    /**
+     * @return every run of the sweep, in order
+     */
+    public List<Run> getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the packing fractions of the runs, each only once and in the order they first appear
+     */
+    public double[] getPackingFractions() {
+        return runs.stream()
+                   .mapToDouble(run -> run.packingFraction)
+                   .distinct()
+                   .toArray();
+    }
+
+    public int[] getNls() {
+        return Nls.clone();
+    }
+
+    /**
+     * @return the number of steps each run takes
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the number of steps each run takes before its first result, letting it settle from the random start
+     */
+    public long getBurnIn() {
+        return burnIn;
+    }
+
+    /**
+     * @return the number of steps between each result of a run
+     */
+    public int getEvery() {
+        return every;
+    }
+
+    public ProcessDeltaN.Estimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * @return a hash of how every run is measured and of the parameters of every run, which changes whenever anything
+     * the results depend on does
+     */
+    public String getHash() {
+        StringBuilder description = new StringBuilder();
+        description.append("nl=")
+                   .append(Arrays.toString(Nls))
+                   .append("\nsteps=")
+                   .append(steps)
+                   .append("\nburnin=")
+                   .append(burnIn)
+                   .append("\nevery=")
+                   .append(every)
+                   .append("\nestimator=")
+                   .append(estimator)
+                   .append('\n');
+        for (Run run : runs) {
+            description.append(run.toRow())
+                       .append('\n');
+        }
+        try {
+            StringBuilder hash = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256")
+                                       .digest(description.toString()
+                                                          .getBytes(StandardCharsets.UTF_8))) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A single simulation of a sweep.
+     */
+    public static class Run {
+        private final int index;
+        private final double packingFraction, speed, k, dPos, dAng, dTime;
+        private final int Nt;
+        // the seed given in the sweep, and the seed of this replica drawn from it
+        private final long sweepSeed, seed;
+        private final int replica;
+
+        Run(int index, double packingFraction, int Nt, double speed, double k, double dPos, double dAng,
+            double dTime, long sweepSeed, int replica, long seed) {
+            this.index = index;
+            this.packingFraction = packingFraction;
+            this.Nt = Nt;
+            this.speed = speed;
+            this.k = k;
+            this.dPos = dPos;
+            this.dAng = dAng;
+            this.dTime = dTime;
+            this.sweepSeed = sweepSeed;
+            this.replica = replica;
+            this.seed = seed;
+        }
+
+        /**
+         * @return the position of the run in the sweep
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public double getPackingFraction() {
+            return packingFraction;
+        }
+
+        public int getNt() {
+            return Nt;
+        }
+
+        public double getSpeed() {
+            return speed;
+        }
+
+        public double getK() {
+            return k;
+        }
+
+        public double getDPos() {
+            return dPos;
+        }
+
+        public double getDAng() {
+            return dAng;
+        }
+
+        public double getDTime() {
+            return dTime;
+        }
+
+        /**
+         * @return the seed of the simulation, drawn for this replica
+         */
+        public long getSeed() {
+            return seed;
+        }
+
+        /**
+         * @return the seed given in the sweep, which the seed of each replica is drawn from
+         */
+        public long getSweepSeed() {
+            return sweepSeed;
+        }
+
+        public int getReplica() {
+            return replica;
+        }
+
+        /**
+         * @return the name of the file the results of the run are written to
+         */
+        public String getFileName() {
+            return String.format(Locale.ROOT, "run-%05d.csv", index);
+        }
+
+        /**
+         * @return the parameters of the run as a row of comma separated values, in the order of {@link #HEADER}
+         */
+        public String toRow() {
+            return index + "," + packingFraction + "," + Nt + "," + speed + "," + k + "," + dPos + "," + dAng + ","
+                    + dTime + "," + sweepSeed + "," + replica + "," + this.getFileName();
+        }
+
+        /**
+         * the names of the columns of {@link #toRow()}
+         */
+        public static final String HEADER = "run,phi,nt,speed,k,dpos,dang,dtime,seed,replica,file";
+    }
+}
@@ -0,0 +1,235 @@
+package com.benjft.activemattertool.batch;
+
+import com.benjft.activemattertool.simulation.Frame;
+import com.benjft.activemattertool.simulation.ProcessDeltaN;
+import com.benjft.activemattertool.simulation.ProcessMultiScaleDeltaN;
+import com.benjft.activemattertool.simulation.Simulation;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every simulation of a {@link SweepConfig} without a display, as separate tasks on a work stealing pool, and
+ * writes the Delta N of each to its own file in a directory. Each file has a column of Delta N for every Nl and a row
+ * for every so many steps.
+ * <p>
+ * Finished runs are listed in a manifest in the same directory, so a sweep that is stopped part way picks up where it
+ * left off when run again, repeating only the runs that hadn't finished. The manifest starts with a hash of the sweep,
+ * so a sweep that has changed since it was started isn't resumed. A run's file is only put in place, and listed, once
+ * it is complete and on disk, and a run that fails is reported and left out of the manifest without stopping the rest
+ * of the sweep.
+ */
+public class SweepRunner {
+    private static final String MANIFEST = "manifest.csv";
+    // the start of the first line of the manifest, which is followed by the hash of the sweep
+    private static final String SWEEP = "# sweep ";
+
+    private final SweepConfig config;
+    private final Path directory;
+    private final int nWorkers;
+
+    /**
+     * @param config    the sweep to run
+     * @param directory the directory to write results and the manifest to
+     * @param nWorkers  the number of runs stepped at once
+     */
+    public SweepRunner(SweepConfig config, Path directory, int nWorkers) {
+        this.config = config;
+        this.directory = directory;
+        this.nWorkers = nWorkers;
+    }
+
+    /**
+     * runs every simulation of the sweep that isn't already in the manifest, returning once all have finished or
+     * failed
+     *
+     * @throws IOException          if the manifest can't be read or written
+     * @throws InterruptedException if interrupted while waiting for the runs
+     */
+    public void run() throws IOException, InterruptedException {
+        Files.createDirectories(directory);
+        final Path manifest = directory.resolve(MANIFEST);
+        final Set<Integer> done = this.readManifest(manifest);
+
+        // the longest runs go first, so a long run isn't left to finish on its own at the end
+        List<SweepConfig.Run> pending = new ArrayList<>();
+        for (SweepConfig.Run run : config.getRuns()) {
+            if (!done.contains(run.getIndex())) pending.add(run);
+        }
+        pending.sort(Comparator.comparingDouble((SweepConfig.Run run) -> (double) run.getNt() * config.getSteps())
+                               .reversed());
+        System.out.printf("%d of %d runs already done, %d to run%n", done.size(), config.getRuns()
+                                                                                   .size(), pending.size());
+
+        final long start = System.nanoTime();
+        final AtomicInteger finished = new AtomicInteger(), failed = new AtomicInteger();
+        // a manifest may be left empty by dropping an unfinished first line
+        final boolean isNew = !Files.exists(manifest) || Files.size(manifest) == 0;
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(manifest, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND))) {
+            if (isNew) {
+                writer.println(SWEEP + config.getHash());
+                writer.println(SweepConfig.Run.HEADER);
+                writer.flush();
+            }
+
+            ExecutorService workers = Executors.newWorkStealingPool(nWorkers);
+            for (SweepConfig.Run run : pending) {
+                workers.execute(() -> {
+                    try {
+                        this.execute(run, workers);
+                    } catch (Exception e) {
+                        System.err.println("run " + run.getIndex() + " failed, it will be retried on resuming");
+                        e.printStackTrace();
+                        failed.incrementAndGet();
+                        return;
+                    }
+                    // a run is only done once its file is in place, and lines of different runs must not be mixed
+                    synchronized (writer) {
+                        writer.println(run.toRow());
+                        writer.flush();
+                    }
+                    System.out.printf(Locale.ROOT, "run %d done (%d of %d), %.1f s%n", run.getIndex(),
+                            finished.incrementAndGet(), pending.size(), (System.nanoTime() - start) * 1e-9);
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        System.out.printf("%d runs done, %d failed%n", finished.get(), failed.get());
+    }
+
+    /**
+     * reads the runs finished by an earlier attempt at the sweep, checking it was the same sweep. A last line cut short
+     * by the earlier attempt stopping is dropped from the file, its run being repeated
+     *
+     * @param manifest the manifest file, which need not exist
+     * @return the indices of the finished runs
+     * @throws IOException if the manifest can't be read, or is of a different sweep
+     */
+    private Set<Integer> readManifest(Path manifest) throws IOException {
+        Set<Integer> done = new HashSet<>();
+        if (!Files.exists(manifest)) return done;
+
+        // only lines ended by a line break were written in full
+        final byte[] bytes = Files.readAllBytes(manifest);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            --end;
+        }
+        if (end < bytes.length) {
+            System.err.println("dropping the unfinished last line of " + manifest);
+            try (FileChannel channel = FileChannel.open(manifest, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+
+        if (end == 0) return done;
+        final String[] lines = new String(bytes, 0, end, StandardCharsets.UTF_8).split("\r?\n");
+        if (lines.length < 2 || !lines[0].startsWith(SWEEP) || !lines[1].equals(SweepConfig.Run.HEADER))
+            throw new IOException(manifest + " is not a sweep manifest");
+        if (!lines[0].equals(SWEEP + config.getHash()))
+            throw new IOException(manifest + " is of a different sweep, the sweep has changed since it was started");
+
+        final List<SweepConfig.Run> runs = config.getRuns();
+        for (int l = 2; l < lines.length; ++l) {
+            if (lines[l].isEmpty()) continue;
+            final int index = Integer.parseInt(lines[l].substring(0, lines[l].indexOf(',')));
+            if (index >= runs.size() || !lines[l].equals(runs.get(index)
+                                                             .toRow()))
+                throw new IOException("run " + index + " of " + manifest + " doesn't match the sweep");
+            done.add(index);
+        }
+        return done;
+    }
+
+    /**
+     * steps one simulation on the calling thread, processing a frame every so many steps, and writes its results
+     *
+     * @param run     the run to step
+     * @param workers the sweep's threads, which the run's processors share
+     * @throws IOException if the results can't be written
+     */
+    private void execute(SweepConfig.Run run, ExecutorService workers) throws IOException {
+        final int[] Nls = config.getNls();
+        final long steps = config.getSteps();
+        final long burnIn = config.getBurnIn();
+        final int every = config.getEvery();
+
+        Simulation sim = Simulation.newInstance(run.getPackingFraction(), run.getNt(), run.getSpeed(), run.getK(),
+                run.getDPos(), run.getDAng(), run.getDTime(), run.getSeed());
+        // frames are processed on the stepping thread before the next step, so no more than two are ever needed
+        sim.setMaxFrames(2);
+        sim.setAnalysisExecutor(workers);
+
+        // processors are only called directly, so don't follow the simulation's steps
+        ProcessMultiScaleDeltaN multiScaleProcessor = null;
+        ProcessDeltaN[] processors = null;
+        if (config.getEstimator() == ProcessDeltaN.Estimator.BOX_COUNT) {
+            multiScaleProcessor = ProcessMultiScaleDeltaN.newDetached(sim, Arrays.stream(Nls)
+                                                                                 .asDoubleStream()
+                                                                                 .toArray());
+        } else {
+            Random random = new Random(run.getSeed());
+            processors = new ProcessDeltaN[Nls.length];
+            for (int j = 0; j < Nls.length; ++j) {
+                processors[j] = ProcessDeltaN.newDetached(sim, Nls[j], random.nextLong(), config.getEstimator());
+            }
+        }
+
+        final Path file = directory.resolve(run.getFileName());
+        final Path partial = directory.resolve(run.getFileName() + ".part");
+        final PrintWriter writer = new PrintWriter(Files.newBufferedWriter(partial));
+        try {
+            StringBuilder header = new StringBuilder("step");
+            for (int Nl : Nls) {
+                header.append(",deltaN_")
+                      .append(Nl);
+            }
+            writer.println(header);
+
+            for (long step = 1; step <= steps; ++step) {
+                Frame frame = sim.step();
+                if (step <= burnIn || step % every != 0 && step != steps) continue;
+                writer.print(frame.getStep());
+                if (multiScaleProcessor != null) {
+                    for (double deltaN : multiScaleProcessor.process(frame)) {
+                        writer.printf(Locale.ROOT, ",%.6f", deltaN);
+                    }
+                } else {
+                    for (ProcessDeltaN processor : processors) {
+                        writer.printf(Locale.ROOT, ",%.6f", processor.process(frame));
+                    }
+                }
+                writer.println();
+            }
+        } finally {
+            writer.close();
+            sim.close();
+        }
+        if (writer.checkError()) throw new IOException("failed to write " + partial);
+        // the file must be on disk before the run is listed as done
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
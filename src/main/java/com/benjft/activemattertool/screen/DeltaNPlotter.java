@@ -1,7 +1,9 @@
 package com.benjft.activemattertool.screen;
 
-import com.benjft.activemattertool.simulation.ProcessDeltaN;
+import com.benjft.activemattertool.simulation.Ensemble;
+import com.benjft.activemattertool.simulation.ProcessMultiScaleDeltaN;
 import com.benjft.activemattertool.simulation.Simulation;
+import javafx.application.Platform;
 import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.SimpleDoubleProperty;
 import javafx.scene.Scene;
@@ -9,6 +11,7 @@ import javafx.scene.chart.XYChart.Data;
 import javafx.scene.chart.XYChart.Series;
 import javafx.stage.Stage;
 
+import java.util.Arrays;
 import java.util.Random;
 
 public class DeltaNPlotter extends SimPlotter {
@@ -19,7 +22,7 @@ public class DeltaNPlotter extends SimPlotter {
     private final long masterSeed;
     private final Random random;
     //    private Simulation[][] simulations;
-    private ProcessDeltaN[][] processors;
+    private ProcessMultiScaleDeltaN[] processors;
 
     /**
      * Launches a number of simulations concurrently and plots their Delta N vs N
@@ -53,9 +56,10 @@ public class DeltaNPlotter extends SimPlotter {
 
         this.random = new Random(this.masterSeed);
 //        this.simulations = new Simulation[packingFractions.length][this.Nls.length];
-        this.processors = new ProcessDeltaN[this.packingFractions.length][this.Nls.length];
+        this.processors = new ProcessMultiScaleDeltaN[this.packingFractions.length];
 
         SimView[] simViews = new SimView[packingFractions.length];
+        Simulation[] simulations = new Simulation[packingFractions.length];
 
         getYAxis().setAutoRanging(false);
         getXAxis().setAutoRanging(false);
@@ -73,13 +77,17 @@ public class DeltaNPlotter extends SimPlotter {
             series.setName(String.format("\u03d5\u2248%.3f", packingFraction));
             Simulation sim = Simulation.newInstance(packingFraction, Nt, this.speed, this.k, this.dPos, this.dAng,
                     this.dTime, random.nextLong());
+            // one processor box counts every Nl from a single table per frame
+            ProcessMultiScaleDeltaN process = new ProcessMultiScaleDeltaN(sim, Arrays.stream(this.Nls)
+                                                                                     .asDoubleStream()
+                                                                                     .toArray());
             // bind listeners
             for (int j = 0; j < this.Nls.length; ++j) {
-                int Nl = this.Nls[j];
+                // a seed is still drawn for each Nl so the simulations get the same seeds as before
+                random.nextLong();
 
-                ProcessDeltaN process = new ProcessDeltaN(sim, Nl, random.nextLong());
-                double logY = Math.log10(process.getValue());
-                double logX = Math.log10(process.getMean());
+                double logY = Math.log10(process.getValue(j));
+                double logX = Math.log10(process.getMean(j));
                 Data<Number, Number> data = new Data<>(logX, logY);
 
                 if (logY < lowerY.get()) lowerY.set(logY);
@@ -87,7 +95,8 @@ public class DeltaNPlotter extends SimPlotter {
                 if (logX < lowerX.get()) lowerX.set(logX);
                 if (logX > upperX.get()) upperX.set(logX);
 
-                process.getValueProperty()
+                // the average over time, as the Delta N of single frames jitters
+                process.getAverageProperty(j)
                        .addListener((observable, oldValue, newValue) -> {
                            double v = Math.log10(newValue.doubleValue());
                            data.setYValue(v);
@@ -96,7 +105,7 @@ public class DeltaNPlotter extends SimPlotter {
                            if (v < lowerY.get())
                                lowerY.set(v);
                        });
-                process.getMeanProperty()
+                process.getMeanProperty(j)
                        .addListener((observable, oldValue, newValue) -> {
                            double v = Math.log10(newValue.doubleValue());
                            data.setXValue(v);
@@ -106,11 +115,11 @@ public class DeltaNPlotter extends SimPlotter {
                                lowerX.set(v);
                        });
 
-//                this.simulations[i][j] = sim;
-                this.processors[i][j] = process;
                 series.getData()
                       .add(data);
             }
+            this.processors[i] = process;
+            simulations[i] = sim;
             simViews[i] = new SimView(new Stage(), sim);
             this.getLineChart()
                 .getData()
@@ -118,6 +127,17 @@ public class DeltaNPlotter extends SimPlotter {
         }
 
         stage.setScene(new Scene(this.getLineChart(), 800, 600));
+        // the simulations step freely on a shared pool, the views only show the latest frames
+        Ensemble ensemble = new Ensemble(Runtime.getRuntime()
+                                                .availableProcessors());
+        for (Simulation sim : simulations) {
+            ensemble.add(sim, 0);
+        }
+        // stop every simulation's threads once the plot is closed
+        stage.setOnHidden(event -> {
+            ensemble.close();
+            Platform.exit();
+        });
         stage.show();
 
         getYAxis().setAutoRanging(false);
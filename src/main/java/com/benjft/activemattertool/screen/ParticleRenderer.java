@@ -0,0 +1,147 @@
+package com.benjft.activemattertool.screen;
+
+import com.benjft.activemattertool.simulation.ParticleStore;
+import javafx.scene.paint.Color;
+
+import java.util.Arrays;
+
+/**
+ * Draws particles straight into an array of pixels, one pass over the particle arrays with no scene graph nodes.
+ * <p>
+ * The view is shifted by half the simulation in each direction, so the periodic boundary runs through the middle of the
+ * image where it is marked in red. Discs are wrapped around the edges of the image, which draws the periodic images of
+ * particles that cross the boundary.
+ */
+class ParticleRenderer {
+    private static final int BACKGROUND = 0xffffffff, BOUNDARY = 0xffff0000, GREY = 0xff7f7f7f;
+    // the number of colours headings are shown with
+    private static final int HUES = 256;
+    private static final int[] HEADING_COLOURS = new int[HUES];
+
+    static {
+        for (int i = 0; i < HUES; ++i) {
+            Color colour = Color.hsb(360.0 * i / HUES, 0.8, 0.85);
+            HEADING_COLOURS[i] = 0xff000000 | (int) Math.round(colour.getRed() * 255) << 16
+                    | (int) Math.round(colour.getGreen() * 255) << 8 | (int) Math.round(colour.getBlue() * 255);
+        }
+    }
+
+    private final double width, height;
+    private int imageWidth, imageHeight;
+    private double scale;
+    private int[] pixels = new int[0];
+    // pixel offsets covered by a disc around its centre pixel
+    private int[] discX = new int[0], discY = new int[0];
+    private boolean colourByHeading = true;
+
+    /**
+     * @param width  the width of the simulation
+     * @param height the height of the simulation
+     */
+    ParticleRenderer(double width, double height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * sets the size of the image, keeping the simulation's aspect ratio within the given area
+     *
+     * @param maxWidth  the most pixels across
+     * @param maxHeight the most pixels down
+     * @return true if the size of the image changed
+     */
+    boolean resize(double maxWidth, double maxHeight) {
+        double scale = Math.max(Math.min(maxWidth / width, maxHeight / height), 1e-3);
+        int imageWidth = Math.max(1, (int) (width * scale)), imageHeight = Math.max(1, (int) (height * scale));
+        if (imageWidth == this.imageWidth && imageHeight == this.imageHeight) return false;
+
+        this.scale = scale;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.pixels = new int[imageWidth * imageHeight];
+
+        // particles have a diameter of 1, so a radius of half the scale in pixels
+        final double radius = Math.max(0.5 * scale, 0.5);
+        final int reach = (int) Math.ceil(radius);
+        int count = 0;
+        int[] xs = new int[(2 * reach + 1) * (2 * reach + 1)], ys = new int[xs.length];
+        for (int dy = -reach; dy <= reach; ++dy) {
+            for (int dx = -reach; dx <= reach; ++dx) {
+                if (dx * dx + dy * dy <= radius * radius) {
+                    xs[count] = dx;
+                    ys[count] = dy;
+                    ++count;
+                }
+            }
+        }
+        this.discX = Arrays.copyOf(xs, count);
+        this.discY = Arrays.copyOf(ys, count);
+        return true;
+    }
+
+    /**
+     * draws every particle into the pixels
+     *
+     * @param particles the particles to draw
+     */
+    void render(ParticleStore particles) {
+        final int[] pixels = this.pixels, discX = this.discX, discY = this.discY;
+        final int w = imageWidth, h = imageHeight;
+        final double scale = this.scale;
+        final double halfWidth = 0.5 * width, halfHeight = 0.5 * height;
+
+        Arrays.fill(pixels, BACKGROUND);
+        for (int i = 0; i < particles.size(); ++i) {
+            // shift by half the space, so the boundary is in the middle of the image
+            double x = particles.getX(i) + halfWidth;
+            double y = particles.getY(i) + halfHeight;
+            if (x >= width) x -= width;
+            if (y >= height) y -= height;
+            final int cx = (int) (x * scale), cy = (int) (y * scale);
+            final int colour = colourByHeading ? headingColour(particles.getTheta(i)) : GREY;
+
+            for (int d = 0; d < discX.length; ++d) {
+                int px = cx + discX[d], py = cy + discY[d];
+                // wrap pixels off one edge onto the other
+                if (px < 0) px += w;
+                else if (px >= w) px -= w;
+                if (py < 0) py += h;
+                else if (py >= h) py -= h;
+                if (px < 0 || px >= w || py < 0 || py >= h) continue;
+                pixels[py * w + px] = colour;
+            }
+        }
+
+        // mark the boundaries of the simulation space
+        final int lineX = w / 2, lineY = h / 2;
+        for (int py = 0; py < h; ++py) {
+            pixels[py * w + lineX] = BOUNDARY;
+        }
+        Arrays.fill(pixels, lineY * w, lineY * w + w, BOUNDARY);
+    }
+
+    private static int headingColour(double theta) {
+        int hue = (int) Math.floor(theta / (2 * Math.PI) * HUES) % HUES;
+        return HEADING_COLOURS[hue < 0 ? hue + HUES : hue];
+    }
+
+    int[] getPixels() {
+        return pixels;
+    }
+
+    int getImageWidth() {
+        return imageWidth;
+    }
+
+    int getImageHeight() {
+        return imageHeight;
+    }
+
+    boolean isColourByHeading() {
+        return colourByHeading;
+    }
+
+    void setColourByHeading(boolean colourByHeading) {
+        this.colourByHeading = colourByHeading;
+    }
+}
@@ -1,34 +1,42 @@
 package com.benjft.activemattertool.screen;
 
+import com.benjft.activemattertool.simulation.Frame;
 import com.benjft.activemattertool.simulation.Simulation;
 import javafx.animation.AnimationTimer;
-import javafx.beans.property.DoubleProperty;
-import javafx.beans.property.ReadOnlyDoubleWrapper;
-import javafx.beans.property.SimpleDoubleProperty;
-import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Label;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.input.KeyCode;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Pane;
-import javafx.scene.paint.Color;
-import javafx.scene.shape.Circle;
-import javafx.scene.shape.Line;
-import javafx.scene.shape.Rectangle;
 import javafx.stage.Stage;
 
 /**
  * Creates a view of the simulation in real-time.
+ * <p>
+ * The view only observes the simulation, which must be stepped by something else such as {@link Simulation#start()}
+ * or an {@link com.benjft.activemattertool.simulation.Ensemble}. Each display frame the latest completed frame is
+ * drawn into a single image by a {@link ParticleRenderer}, which scales with the window, and the number of steps
+ * taken since the last display frame is shown in the corner. Pressing H switches between colouring the particles by
+ * their heading and drawing them all grey.
  */
 public class SimView {
-    private final Simulation simulation;
+    // the starting number of pixels per particle diameter
+    private static final double INITIAL_SCALE = 3;
 
-    private final DoubleProperty scale, width, height;
-    // makes for easier binding between the particle positions and the positions of the circles representing them
-    private DoubleProperty[][] positions;
+    private final Simulation simulation;
+    private final ParticleRenderer renderer;
+    private WritableImage image;
+    private final Label stepsPerFrame = new Label();
+    // the step of the last frame drawn and a running average of the steps between drawn frames
+    private long lastStep = -1;
+    private double averageSteps = 0;
 
     public SimView(Stage stage, Simulation simulation) {
         this.simulation = simulation;
-        width = new ReadOnlyDoubleWrapper(this.simulation.getWidth());
-        height = new ReadOnlyDoubleWrapper(this.simulation.getHeight());
-        scale = new SimpleDoubleProperty(3); // TODO: bind to window size
+        this.renderer = new ParticleRenderer(simulation.getWidth(), simulation.getHeight());
 
         this.start(stage);
     }
@@ -40,186 +48,64 @@ public class SimView {
      */
     private void start(Stage stage) {
         Pane root = new Pane();
-
-        double[][] particles = simulation.getParticles();
-        Circle[] circles = createPositions(particles);
-
-        updatePositions(simulation.getParticles());
+        Canvas canvas = new Canvas();
+        // the canvas fills the window, and the image is redrawn to fit it
+        canvas.widthProperty()
+              .bind(root.widthProperty());
+        canvas.heightProperty()
+              .bind(root.heightProperty());
         root.getChildren()
-            .addAll(circles);
-
-        root.getChildren()
-            .addAll(this.getOverlays());
+            .addAll(canvas, stepsPerFrame);
 
         AnimationTimer animation = new AnimationTimer() {
             @Override
             public void handle(long now) {
-                updatePositions(simulation.advanceAndGetParticles());
+                draw(canvas);
             }
         };
         animation.start();
 
-        Scene scene = new Scene(root);
+        Scene scene = new Scene(root, simulation.getWidth() * INITIAL_SCALE, simulation.getHeight() * INITIAL_SCALE);
+        scene.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.H) this.setColourByHeading(!renderer.isColourByHeading());
+        });
         stage.setScene(scene);
         stage.show();
     }
 
     /**
-     * binds a set of circles to the positions of the particles.
-     * Each particle is linked to four circles to help better show interactions across the boundary (shown in red on
-     * the display)
+     * draws the latest frame of the simulation onto the canvas
      *
-     * @param particles the set of particles
-     * @return the cet of circles representing them
+     * @param canvas the canvas to draw on
      */
-    private Circle[] createPositions(double[][] particles) {
-        this.positions = new DoubleProperty[particles.length][2];
-        Circle[] circles = new Circle[particles.length * 4];
-
-        // loop through each particle and populate arrays with required objects
-        for (int i = 0; i < particles.length; ++i) {
-            // create bindable property for this particle
-            positions[i][0] = new SimpleDoubleProperty(particles[i][0]);
-            positions[i][1] = new SimpleDoubleProperty(particles[i][1]);
-
-            // create and bind circles for this particle
-
-            // circle will be shifted up and left by half to help show boundary interactions
-            Circle circle0 = new Circle();
-            circle0.setFill(Color.gray(0, 0.5));
-            circle0.radiusProperty()
-                   .bind(scale.multiply(0.5d));
-            circle0.centerXProperty()
-                   .bind(width.multiply(-0.5)
-                              .add(positions[i][0])
-                              .multiply(scale));
-            circle0.centerYProperty()
-                   .bind(height.multiply(-0.5)
-                               .add(positions[i][1])
-                               .multiply(scale));
-
-            // circle will be shifted down and left by half to help show boundary interactions
-            Circle circle1 = new Circle();
-            circle1.setFill(Color.gray(0, 0.5));
-            circle1.radiusProperty()
-                   .bind(scale.multiply(0.5d));
-            circle1.centerXProperty()
-                   .bind(width.multiply(-0.5)
-                              .add(positions[i][0])
-                              .multiply(scale));
-            circle1.centerYProperty()
-                   .bind(height.multiply(+0.5)
-                               .add(positions[i][1])
-                               .multiply(scale));
-
-            // circle will be shifted up and right by half to help show boundary interactions
-            Circle circle2 = new Circle();
-            circle2.setFill(Color.gray(0, 0.5));
-            circle2.radiusProperty()
-                   .bind(scale.multiply(0.5d));
-            circle2.centerXProperty()
-                   .bind(width.multiply(+0.5)
-                              .add(positions[i][0])
-                              .multiply(scale));
-            circle2.centerYProperty()
-                   .bind(height.multiply(-0.5)
-                               .add(positions[i][1])
-                               .multiply(scale));
-
-            // circle will be shifted down and right by half to help show boundary interactions
-            Circle circle3 = new Circle();
-            circle3.setFill(Color.gray(0, 0.5));
-            circle3.radiusProperty()
-                   .bind(scale.multiply(0.5d));
-            circle3.centerXProperty()
-                   .bind(width.multiply(+0.5)
-                              .add(positions[i][0])
-                              .multiply(scale));
-            circle3.centerYProperty()
-                   .bind(height.multiply(+0.5)
-                               .add(positions[i][1])
-                               .multiply(scale));
-
-            circles[i] = circle0;
-            circles[positions.length + i] = circle1;
-            circles[2 * positions.length + i] = circle2;
-            circles[3 * positions.length + i] = circle3;
+    private void draw(Canvas canvas) {
+        if (renderer.resize(canvas.getWidth(), canvas.getHeight()) || image == null) {
+            image = new WritableImage(renderer.getImageWidth(), renderer.getImageHeight());
         }
 
-        return circles;
-    }
-
-    /**
-     * updates the positions stored as a DoubleProperty[] from the positions of the particles and therefore the
-     * positions of the circles on the screen.
-     *
-     * @param particles the updated particle positions
-     */
-    private void updatePositions(double[][] particles) {
-//        double[][] particles = simulation.getParticles();
-        for (int i = 0; i < particles.length; ++i) {
-            double[] particle = particles[i];
-            DoubleProperty[] pos = positions[i];
-            // setting positions here updates positions for circles via the binding set up previously
-            pos[0].set(particle[0]);
-            pos[1].set(particle[1]);
+        long step;
+        try (Frame frame = simulation.acquireLatestFrame()) {
+            renderer.render(frame.getParticles());
+            step = frame.getStep();
+        }
+        if (lastStep >= 0) {
+            averageSteps += 0.1 * ((step - lastStep) - averageSteps);
+            stepsPerFrame.setText(String.format("%.1f steps per frame", averageSteps));
         }
+        lastStep = step;
+        image.getPixelWriter()
+             .setPixels(0, 0, renderer.getImageWidth(), renderer.getImageHeight(), PixelFormat.getIntArgbInstance(),
+                     renderer.getPixels(), 0, renderer.getImageWidth());
+
+        GraphicsContext graphics = canvas.getGraphicsContext2D();
+        graphics.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        graphics.drawImage(image, 0, 0);
     }
 
     /**
-     * gets the overlays to show the simulation boundaries and hide duplicates off the edge.
-     *
-     * @return the overlays
+     * @param colourByHeading true to colour particles by their heading, false to draw them all grey
      */
-    private Node[] getOverlays() {
-
-        // create a pair of white rectangles to cover the quadrants already shown
-        Rectangle r1 = new Rectangle(), r2 = new Rectangle();
-        r1.yProperty()
-          .bind(height.multiply(scale));
-        r1.heightProperty()
-          .bind(height.add(1)
-                      .multiply(scale)
-                      .divide(2));
-        r1.widthProperty()
-          .bind(width.add(1)
-                     .multiply(scale)
-                     .multiply(1.5));
-        r1.setFill(Color.gray(1));
-
-        r2.xProperty()
-          .bind(width.multiply(scale));
-        r2.heightProperty()
-          .bind(height.add(1)
-                      .multiply(scale));
-        r2.widthProperty()
-          .bind(width.add(1)
-                     .multiply(scale)
-                     .divide(2));
-        r2.setFill(Color.gray(1));
-
-        // create a pair of red l;ines to mark the boundaries of the simulation space
-        Line l1 = new Line(), l2 = new Line();
-        l1.startXProperty()
-          .bind(width.multiply(scale)
-                     .divide(2));
-        l1.endXProperty()
-          .bind(width.multiply(scale)
-                     .divide(2));
-        l1.endYProperty()
-          .bind(height.multiply(scale));
-        l1.setStroke(Color.RED);
-
-        l2.startYProperty()
-          .bind(height.multiply(scale)
-                      .divide(2));
-        l2.endYProperty()
-          .bind(height.multiply(scale)
-                      .divide(2));
-        l2.endXProperty()
-          .bind(width.multiply(scale));
-        l2.setStroke(Color.RED);
-
-        return new Node[]{r1, r2, l1, l2};
+    public void setColourByHeading(boolean colourByHeading) {
+        renderer.setColourByHeading(colourByHeading);
     }
 }
@@ -0,0 +1,181 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.Arrays;
+
+/**
+ * Counts the particles in square windows of the simulation space in constant time per window.
+ * <p>
+ * Particles are binned once into a fine grid of density bins, and a summed-area table of the bins is built so the
+ * count in any rectangle of bins is found from four lookups. Windows that cross the periodic boundary are split into
+ * up to four rectangles. Windows are aligned to the bins and their side is rounded to a whole number of bins, so the
+ * counts are exact for the windows actually used.
+ */
+class BoxCounter {
+    private final int nBinsX, nBinsY;
+    private final double binWidth, binHeight;
+    // counts in each bin, then the summed-area table with an extra leading row and column of zeroes
+    private final int[] bins, table;
+
+    /**
+     * @param width   the width of the simulation space
+     * @param height  the height of the simulation space
+     * @param binSize the largest size of a bin, bins are shrunk slightly to fit the space exactly
+     */
+    BoxCounter(double width, double height, double binSize) {
+        this.nBinsX = getNBins(width, binSize);
+        this.nBinsY = getNBins(height, binSize);
+        this.binWidth = width / nBinsX;
+        this.binHeight = height / nBinsY;
+        this.bins = new int[nBinsX * nBinsY];
+        this.table = new int[(nBinsX + 1) * (nBinsY + 1)];
+    }
+
+    /**
+     * bins the particles and rebuilds the summed-area table
+     *
+     * @param state the particles to count
+     */
+    void build(ParticleStore state) {
+        final int[] bins = this.bins, table = this.table;
+        final int stride = nBinsY + 1;
+
+        Arrays.fill(bins, 0);
+        for (int i = 0; i < state.size(); ++i) {
+            int bx = getBin(state.x[i], binWidth, nBinsX);
+            int by = getBin(state.y[i], binHeight, nBinsY);
+            ++bins[bx * nBinsY + by];
+        }
+
+        // table[(bx + 1) * stride + by + 1] holds the count of every bin up to and including (bx, by)
+        for (int bx = 0; bx < nBinsX; ++bx) {
+            int rowSum = 0;
+            for (int by = 0; by < nBinsY; ++by) {
+                rowSum += bins[bx * nBinsY + by];
+                table[(bx + 1) * stride + by + 1] = table[bx * stride + by + 1] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * @param len the side of the window in the simulation's units
+     * @return the side of the window in bins along x
+     */
+    int getSideX(double len) {
+        return getSide(len, binWidth, nBinsX);
+    }
+
+    /**
+     * @param len the side of the window in the simulation's units
+     * @return the side of the window in bins along y
+     */
+    int getSideY(double len) {
+        return getSide(len, binHeight, nBinsY);
+    }
+
+    /**
+     * @param maxWindows the most window positions wanted
+     * @return the smallest stride visiting no more than the given number of positions
+     */
+    int getStride(int maxWindows) {
+        return getStride(nBinsX, nBinsY, maxWindows);
+    }
+
+    /**
+     * @return the number of bins along a side of the space, each no larger than the bin size
+     */
+    static int getNBins(double length, double binSize) {
+        return Math.max(1, (int) Math.ceil(length / binSize));
+    }
+
+    /**
+     * @return the bin along a side that a position lies in
+     */
+    static int getBin(double position, double binLength, int nBins) {
+        return Math.min((int) (position / binLength), nBins - 1);
+    }
+
+    /**
+     * @return the side of a window in bins along a side of the space
+     */
+    static int getSide(double len, double binLength, int nBins) {
+        return Math.max(1, Math.min(nBins, (int) Math.round(len / binLength)));
+    }
+
+    /**
+     * @return the smallest stride visiting no more than the given number of positions of a grid of bins
+     */
+    static int getStride(int nBinsX, int nBinsY, int maxWindows) {
+        int stride = 1;
+        while ((long) ceilDiv(nBinsX, stride) * ceilDiv(nBinsY, stride) > maxWindows) {
+            ++stride;
+        }
+        return stride;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * calculates the mean and standard deviation of the count in windows of one size, placed at every stride-th bin in
+     * each direction. A stride of 1 visits every window position.
+     *
+     * @param len    the side of the window in the simulation's units
+     * @param stride the number of bins between window positions
+     * @return a pair containing the mean count, and the standard deviation from this mean
+     */
+    DeltaNProcessor.DoublePair getStats(double len, int stride) {
+        final int sideX = this.getSideX(len), sideY = this.getSideY(len);
+        double mean = 0, s = 0;
+        long count = 0;
+        for (int bx = 0; bx < nBinsX; bx += stride) {
+            for (int by = 0; by < nBinsY; by += stride) {
+                int n = this.count(bx, by, sideX, sideY);
+                // advance running mean and variance (Uses the Welford method)
+                double oldMean = mean;
+                mean += (n - oldMean) / ++count;
+                s += (n - oldMean) * (n - mean);
+            }
+        }
+        // every position on the lattice is visited, so this is the variance of the whole population of windows
+        return new DeltaNProcessor.DoublePair(mean, Math.sqrt(s / count));
+    }
+
+    /**
+     * counts the particles in a window of bins, wrapping around the periodic boundary
+     *
+     * @param bx    the first column of bins
+     * @param by    the first row of bins
+     * @param sideX the number of columns of bins, at most the number in the grid
+     * @param sideY the number of rows of bins, at most the number in the grid
+     * @return the number of particles in the window
+     */
+    int count(int bx, int by, int sideX, int sideY) {
+        int endX = bx + sideX, endY = by + sideY;
+        int wrapX = endX - nBinsX, wrapY = endY - nBinsY;
+        if (wrapX > 0) endX = nBinsX;
+        if (wrapY > 0) endY = nBinsY;
+
+        int n = this.rectangle(bx, by, endX, endY);
+        if (wrapX > 0) n += this.rectangle(0, by, wrapX, endY);
+        if (wrapY > 0) n += this.rectangle(bx, 0, endX, wrapY);
+        if (wrapX > 0 && wrapY > 0) n += this.rectangle(0, 0, wrapX, wrapY);
+        return n;
+    }
+
+    /**
+     * @return the number of particles in the bins from (x0, y0) up to but not including (x1, y1)
+     */
+    private int rectangle(int x0, int y0, int x1, int y1) {
+        final int stride = nBinsY + 1;
+        return table[x1 * stride + y1] - table[x0 * stride + y1] - table[x1 * stride + y0] + table[x0 * stride + y0];
+    }
+
+    int getNBinsX() {
+        return nBinsX;
+    }
+
+    int getNBinsY() {
+        return nBinsY;
+    }
+}
@@ -0,0 +1,286 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A flat cell list storing which particles lie in each cell of a grid. The particles in a cell are found at indices
+ * cellStart[cell] to cellStart[cell + 1] of cellIndex. The list is built in two linear passes (a counting sort) and
+ * can be rebuilt without allocating.
+ * <p>
+ * Large lists are built in parallel by first sorting the particles into bands of whole columns, each a contiguous
+ * range of cells, then counting sorting each band into its cells on its own. Both passes are stable, so the list is
+ * the same as a serial build gives.
+ */
+public class CellList {
+    // the most bands of columns and chunks of particles a parallel build is split into
+    private static final int BANDS = 64, CHUNKS = 64;
+
+    private final int nCols, nRows;
+    final int[] cellStart, cellIndex;
+    private final Scratch scratch;
+    private boolean sorted = false;
+
+    /**
+     * Space used while building, which lists that are only built on one thread can share.
+     */
+    static class Scratch {
+        // cell of each particle, kept between the counting and scattering passes
+        final int[] cellOf;
+        // particles in band order, and the particles of each chunk in each band, for parallel builds
+        private int[] bandOrder, bandStart;
+        private int[][] bandCounts;
+
+        /**
+         * @param nParticles the number of particles of the lists sharing the space
+         */
+        Scratch(int nParticles) {
+            this.cellOf = new int[nParticles];
+        }
+
+        /**
+         * estimates the size of the space
+         *
+         * @param nParticles the number of particles of the lists sharing the space
+         * @param parallel   whether the lists are built in parallel
+         * @return the size in bytes
+         */
+        static long estimateBytes(long nParticles, boolean parallel) {
+            return Integer.BYTES * nParticles * (parallel ? 2 : 1);
+        }
+    }
+
+    /**
+     * creates an empty cell list
+     *
+     * @param nCols      the number of columns in the grid
+     * @param nRows      the number of rows in the grid
+     * @param nParticles the number of particles to be stored
+     */
+    public CellList(int nCols, int nRows, int nParticles) {
+        this(nCols, nRows, nParticles, new Scratch(nParticles));
+    }
+
+    /**
+     * creates an empty cell list building in shared space, so must never be built at the same time as other lists
+     * sharing the space
+     *
+     * @param nCols      the number of columns in the grid
+     * @param nRows      the number of rows in the grid
+     * @param nParticles the number of particles to be stored
+     * @param scratch    the space to build in
+     */
+    CellList(int nCols, int nRows, int nParticles, Scratch scratch) {
+        this.nCols = nCols;
+        this.nRows = nRows;
+        this.cellStart = new int[Math.addExact(Math.multiplyExact(nCols, nRows), 1)];
+        this.cellIndex = new int[nParticles];
+        this.scratch = scratch;
+    }
+
+    /**
+     * rebuilds the list from the positions of the particles
+     *
+     * @param particles  the particles to place into cells
+     * @param cellWidth  the width of each cell
+     * @param cellHeight the height of each cell
+     * @param parallel   whether to build the list using multiple threads
+     */
+    void build(ParticleStore particles, double cellWidth, double cellHeight, boolean parallel) {
+        sorted = false;
+        if (parallel) {
+            this.buildBands(particles, cellWidth, cellHeight);
+            return;
+        }
+        final int n = particles.size();
+        final int[] cellOf = scratch.cellOf;
+
+        // find the cell of each particle
+        for (int i = 0; i < n; ++i) {
+            cellOf[i] = this.locate(particles, i, cellWidth, cellHeight);
+        }
+
+        // count the particles in each cell, then turn the counts into starting positions
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < n; ++i) {
+            ++cellStart[cellOf[i] + 1];
+        }
+        for (int cell = 0; cell < nCols * nRows; ++cell) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+
+        // scatter the particle indices into their cells, using the start of each cell as a cursor. This leaves each
+        // entry holding the start of the following cell, so shift them back into place afterwards
+        for (int i = 0; i < n; ++i) {
+            cellIndex[cellStart[cellOf[i]]++] = i;
+        }
+        System.arraycopy(cellStart, 0, cellStart, 1, nCols * nRows);
+        cellStart[0] = 0;
+    }
+
+    /**
+     * builds the list in parallel, sorting the particles into bands of columns and then each band into its cells
+     */
+    private void buildBands(ParticleStore particles, double cellWidth, double cellHeight) {
+        final int n = particles.size();
+        final int[] cellOf = scratch.cellOf;
+        final int nBands = Math.min(BANDS, nCols);
+        final int cellsPerBand = (nCols + nBands - 1) / nBands * nRows;
+        final int chunkSize = (n + CHUNKS - 1) / CHUNKS;
+        if (scratch.bandOrder == null) {
+            scratch.bandOrder = new int[n];
+            scratch.bandStart = new int[BANDS + 1];
+            scratch.bandCounts = new int[CHUNKS][BANDS];
+        }
+        final int[] bandOrder = scratch.bandOrder, bandStart = scratch.bandStart;
+        final int[][] bandCounts = scratch.bandCounts;
+
+        // find the cell of each particle, and count the particles of each chunk in each band
+        IntStream.range(0, CHUNKS)
+                 .parallel()
+                 .forEach(chunk -> {
+                     final int[] counts = bandCounts[chunk];
+                     Arrays.fill(counts, 0);
+                     for (int i = chunk * chunkSize, end = Math.min(n, i + chunkSize); i < end; ++i) {
+                         final int cell = this.locate(particles, i, cellWidth, cellHeight);
+                         cellOf[i] = cell;
+                         ++counts[cell / cellsPerBand];
+                     }
+                 });
+
+        // turn the counts into where each chunk starts writing in each band, in chunk order to keep the sort stable
+        bandStart[0] = 0;
+        for (int band = 0; band < nBands; ++band) {
+            int position = bandStart[band];
+            for (int chunk = 0; chunk < CHUNKS; ++chunk) {
+                final int count = bandCounts[chunk][band];
+                bandCounts[chunk][band] = position;
+                position += count;
+            }
+            bandStart[band + 1] = position;
+        }
+        IntStream.range(0, CHUNKS)
+                 .parallel()
+                 .forEach(chunk -> {
+                     final int[] cursors = bandCounts[chunk];
+                     for (int i = chunk * chunkSize, end = Math.min(n, i + chunkSize); i < end; ++i) {
+                         bandOrder[cursors[cellOf[i] / cellsPerBand]++] = i;
+                     }
+                 });
+
+        // counting sort each band into its own range of cells, as a serial build does for the whole grid
+        IntStream.range(0, nBands)
+                 .parallel()
+                 .forEach(band -> {
+                     final int firstCell = band * cellsPerBand;
+                     final int lastCell = Math.min(nCols * nRows, firstCell + cellsPerBand);
+                     // rounding the band width up can leave the last bands without any columns
+                     if (firstCell >= lastCell) return;
+                     Arrays.fill(cellStart, firstCell, lastCell, 0);
+                     for (int pos = bandStart[band]; pos < bandStart[band + 1]; ++pos) {
+                         ++cellStart[cellOf[bandOrder[pos]]];
+                     }
+                     int position = bandStart[band];
+                     for (int cell = firstCell; cell < lastCell; ++cell) {
+                         final int count = cellStart[cell];
+                         cellStart[cell] = position;
+                         position += count;
+                     }
+                     // scatter using the start of each cell as a cursor, then shift them back into place
+                     for (int pos = bandStart[band]; pos < bandStart[band + 1]; ++pos) {
+                         final int i = bandOrder[pos];
+                         cellIndex[cellStart[cellOf[i]]++] = i;
+                     }
+                     System.arraycopy(cellStart, firstCell, cellStart, firstCell + 1, lastCell - firstCell - 1);
+                     cellStart[firstCell] = bandStart[band];
+                 });
+        cellStart[nCols * nRows] = n;
+    }
+
+    /**
+     * estimates the size of a cell list, not counting the space it builds in
+     *
+     * @param nParticles the number of particles stored
+     * @param nCells     the number of cells in the grid
+     * @return the size in bytes
+     */
+    static long estimateBytes(long nParticles, long nCells) {
+        return Integer.BYTES * (nParticles + nCells + 1);
+    }
+
+    private int locate(ParticleStore particles, int i, double cellWidth, double cellHeight) {
+        int col = (int) (particles.x[i] / cellWidth);
+        int row = (int) (particles.y[i] / cellHeight);
+        // guard against rounding placing a particle on the far boundary
+        if (col >= nCols) col = nCols - 1;
+        if (row >= nRows) row = nRows - 1;
+        return this.getCell(col, row);
+    }
+
+    /**
+     * marks the list as referring to particles that have been reordered into cell order, so that each cell holds a
+     * contiguous run of particle indices
+     */
+    void setSorted() {
+        for (int i = 0; i < cellIndex.length; ++i) {
+            cellIndex[i] = i;
+        }
+        sorted = true;
+    }
+
+    /**
+     * @return true if the list refers to particles in cell order, so each cell is a run of consecutive indices
+     */
+    boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * @param col the column of the cell
+     * @param row the row of the cell
+     * @return the index of the cell
+     */
+    public int getCell(int col, int row) {
+        return col * nRows + row;
+    }
+
+    /**
+     * @param cell the index of the cell
+     * @return the position in the index array of the first particle in the cell
+     */
+    public int getCellStart(int cell) {
+        return cellStart[cell];
+    }
+
+    /**
+     * @param cell the index of the cell
+     * @return the position in the index array after the last particle in the cell
+     */
+    public int getCellEnd(int cell) {
+        return cellStart[cell + 1];
+    }
+
+    /**
+     * @param cell the index of the cell
+     * @return the number of particles in the cell
+     */
+    public int getCellSize(int cell) {
+        return cellStart[cell + 1] - cellStart[cell];
+    }
+
+    /**
+     * @param position a position in the index array
+     * @return the index of the particle stored at that position
+     */
+    public int getParticle(int position) {
+        return cellIndex[position];
+    }
+
+    public int getNCols() {
+        return nCols;
+    }
+
+    public int getNRows() {
+        return nRows;
+    }
+}
@@ -0,0 +1,197 @@
+package com.benjft.activemattertool.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The complete state of a simulation at one step, enough to carry on from it bit for bit.
+ * <p>
+ * A checkpoint holds the parameters of the simulation, the seed of its noise, the step, the integration scheme and the
+ * particles in their stored order along with their ids. The noise is a pure function of the seed and step, so no
+ * generator state needs saving. The file ends with a CRC32 of everything before it, so a torn or corrupt file is
+ * rejected rather than resumed from.
+ */
+final class Checkpoint {
+    private static final byte[] MAGIC = "AMTCKP01".getBytes(StandardCharsets.US_ASCII);
+    // the integration schemes that can be restored, anything else can't be resumed from
+    private static final int EULER = 0, HEUN = 1, ADAPTIVE = 2, OTHER = -1;
+
+    final double width, height, speed, k, dPos, dAng, dTime;
+    final long seed, step;
+    final int integratorType;
+    final double integratorParameter;
+    final ParticleStore particles;
+
+    private Checkpoint(double width, double height, double speed, double k, double dPos, double dAng, double dTime,
+                       long seed, long step, int integratorType, double integratorParameter,
+                       ParticleStore particles) {
+        this.width = width;
+        this.height = height;
+        this.speed = speed;
+        this.k = k;
+        this.dPos = dPos;
+        this.dAng = dAng;
+        this.dTime = dTime;
+        this.seed = seed;
+        this.step = step;
+        this.integratorType = integratorType;
+        this.integratorParameter = integratorParameter;
+        this.particles = particles;
+    }
+
+    /**
+     * @return a new instance of the integration scheme the checkpoint was written with
+     */
+    Integrator getIntegrator() {
+        switch (integratorType) {
+            case EULER:
+                return new EulerIntegrator();
+            case HEUN:
+                return new HeunIntegrator();
+            case ADAPTIVE:
+                return new AdaptiveIntegrator(integratorParameter);
+            default:
+                throw new IllegalArgumentException("checkpoint was written with an integrator that can't be restored");
+        }
+    }
+
+    /**
+     * writes a frame of a simulation to a checkpoint file. The file is written beside the target, flushed to disk, then
+     * moved over the target in one go, so the target always holds a complete checkpoint. The directory is flushed
+     * after the move, so the new checkpoint survives a crash.
+     *
+     * @param sim   the simulation the frame belongs to
+     * @param frame the frame to write, which must be pinned
+     * @param path  the file to write to
+     * @throws IOException if the checkpoint can't be written
+     */
+    static void write(Simulation sim, Frame frame, Path path) throws IOException {
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        final ParticleStore particles = frame.getParticles();
+        final int n = particles.size();
+
+        int integratorType = OTHER;
+        double integratorParameter = 0;
+        Integrator integrator = sim.getIntegrator();
+        if (integrator instanceof EulerIntegrator) {
+            integratorType = EULER;
+        } else if (integrator instanceof HeunIntegrator) {
+            integratorType = HEUN;
+        } else if (integrator instanceof AdaptiveIntegrator) {
+            integratorType = ADAPTIVE;
+            integratorParameter = ((AdaptiveIntegrator) integrator).getMaxDisplacement();
+        }
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), 1 << 16), crc));
+            out.write(MAGIC);
+            out.writeDouble(sim.getWidth());
+            out.writeDouble(sim.getHeight());
+            out.writeDouble(sim.getSpeed());
+            out.writeDouble(sim.getK());
+            out.writeDouble(sim.getDPos());
+            out.writeDouble(sim.getDAng());
+            out.writeDouble(sim.getDTime());
+            out.writeLong(sim.getSeed());
+            out.writeLong(frame.getStep());
+            out.writeInt(integratorType);
+            out.writeDouble(integratorParameter);
+            out.writeInt(n);
+            writeDoubles(out, particles.x, n);
+            writeDoubles(out, particles.y, n);
+            writeDoubles(out, particles.theta, n);
+            for (int i = 0; i < n; ++i) {
+                out.writeInt(particles.id[i]);
+            }
+            out.flush();
+            // the checksum itself isn't part of the checked data
+            new DataOutputStream(Channels.newOutputStream(channel)).writeLong(crc.getValue());
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath()
+                           .getParent());
+    }
+
+    /**
+     * flushes a directory's entries to disk, making a rename within it durable. Some platforms can't open a directory
+     * to flush it, where the rename is left as durable as the file system makes it
+     *
+     * @param directory the directory to flush
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported here, nothing more can be done
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values, int n) throws IOException {
+        for (int i = 0; i < n; ++i) {
+            out.writeDouble(values[i]);
+        }
+    }
+
+    /**
+     * reads a checkpoint file
+     *
+     * @param path the file to read
+     * @return the checkpoint
+     * @throws IOException if the file can't be read, isn't a checkpoint or fails its checksum
+     */
+    static Checkpoint read(Path path) throws IOException {
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(file, crc));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(path + " is not a checkpoint");
+
+            double width = in.readDouble(), height = in.readDouble(), speed = in.readDouble(), k = in.readDouble(),
+                    dPos = in.readDouble(), dAng = in.readDouble(), dTime = in.readDouble();
+            long seed = in.readLong(), step = in.readLong();
+            int integratorType = in.readInt();
+            double integratorParameter = in.readDouble();
+            int n = in.readInt();
+            ParticleStore particles = new ParticleStore(n);
+            readDoubles(in, particles.x, n);
+            readDoubles(in, particles.y, n);
+            readDoubles(in, particles.theta, n);
+            for (int i = 0; i < n; ++i) {
+                particles.id[i] = in.readInt();
+            }
+
+            long expected = crc.getValue();
+            if (new DataInputStream(file).readLong() != expected)
+                throw new IOException(path + " is corrupt, its checksum doesn't match");
+
+            return new Checkpoint(width, height, speed, k, dPos, dAng, dTime, seed, step, integratorType,
+                    integratorParameter, particles);
+        }
+    }
+
+    private static void readDoubles(DataInputStream in, double[] values, int n) throws IOException {
+        for (int i = 0; i < n; ++i) {
+            values[i] = in.readDouble();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.benjft.activemattertool.simulation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a checkpoint of a simulation, which {@link Simulation#fromCheckpoint(Path)} can resume from.
+ * <p>
+ * Checkpoints are written on a thread of their own, with the frame pinned until it has been written. Only one is ever
+ * written at a time, and a checkpoint that falls due while the last is still being written is skipped, so the I/O cost
+ * is bounded however short the interval. Each checkpoint replaces the last in one atomic move, so the file always holds
+ * a complete checkpoint. A checkpoint that fails to write is reported and the previous one kept, without stopping the
+ * simulation.
+ */
+public class Checkpointer implements StateProcessor<Long>, AutoCloseable {
+    private final Simulation sim;
+    private final Path path;
+    private final long every;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    // the checkpoint being written, only touched from the simulation's stepping thread
+    private Future<?> pending;
+    // the step of the last checkpoint written
+    private volatile long written = -1;
+    private boolean active = true;
+
+    /**
+     * starts checkpointing a simulation
+     *
+     * @param sim   the simulation to checkpoint
+     * @param path  the checkpoint file, replaced by each new checkpoint
+     * @param every the number of steps between checkpoints
+     */
+    public Checkpointer(Simulation sim, Path path, long every) {
+        if (every < 1) throw new IllegalArgumentException("every must be at least 1");
+        this.sim = sim;
+        this.path = path;
+        this.every = every;
+        sim.registerStateProcessor(this);
+    }
+
+    @Override
+    public void advance(Frame frame) {
+        if (!this.isActive() || frame.getStep() % every != 0) return;
+        if (pending != null) {
+            if (!pending.isDone()) return;
+            this.checkWritten();
+        }
+
+        frame.retain();
+        pending = writer.submit(() -> {
+            try {
+                Checkpoint.write(sim, frame, path);
+                written = frame.getStep();
+            } catch (IOException e) {
+                // the last checkpoint is left in place, and the next one due tries again
+                System.err.println("failed to checkpoint step " + frame.getStep() + " to " + path + ", keeping step "
+                        + written);
+                e.printStackTrace();
+            } finally {
+                frame.release();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * surfaces any unexpected failure in writing the last checkpoint, failures to write the file having already been
+     * reported
+     */
+    private void checkWritten() {
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * waits for any checkpoint being written, then checkpoints the latest frame if it is newer. The simulation must
+     * have stopped stepping.
+     *
+     * @throws IOException if the final checkpoint can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        active = false;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+        }
+        if (pending != null) this.checkWritten();
+
+        try (Frame frame = sim.acquireLatestFrame()) {
+            if (frame.getStep() > written) {
+                Checkpoint.write(sim, frame, path);
+                written = frame.getStep();
+            }
+        }
+    }
+
+    /**
+     * @return the step of the last checkpoint written, or -1 if none has been
+     */
+    @Override
+    public Long getValue() {
+        return written;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    @Override
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+}
@@ -0,0 +1,102 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * A counter based noise source. The seed, step, particle and component are hashed into the start of a SplitMix64
+ * stream, which then feeds a 128 layer ziggurat sampler (Marsaglia and Tsang, 2000). Nothing is shared between calls,
+ * so any number of threads can draw from it at once.
+ */
+public class CounterNoise implements NoiseSource {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final int LAYERS = 128;
+    // the start of the tail of the distribution
+    private static final double R = 3.442619855899;
+    private static final double[] K = new double[LAYERS], W = new double[LAYERS], F = new double[LAYERS];
+
+    static {
+        // build the ziggurat tables for 32 bit signed values
+        final double m = 2147483648.0, v = 9.91256303526217e-3;
+        double dn = R, tn = R;
+        double q = v / Math.exp(-0.5 * dn * dn);
+
+        K[0] = dn / q * m;
+        K[1] = 0;
+        W[0] = q / m;
+        W[LAYERS - 1] = dn / m;
+        F[0] = 1;
+        F[LAYERS - 1] = Math.exp(-0.5 * dn * dn);
+        for (int i = LAYERS - 2; i >= 1; --i) {
+            dn = Math.sqrt(-2 * Math.log(v / dn + Math.exp(-0.5 * dn * dn)));
+            K[i + 1] = dn / tn * m;
+            tn = dn;
+            F[i] = Math.exp(-0.5 * dn * dn);
+            W[i] = dn / m;
+        }
+    }
+
+    private final long seed;
+
+    /**
+     * @param seed the seed all noise values are derived from
+     */
+    public CounterNoise(long seed) {
+        this.seed = mix64(seed);
+    }
+
+    /**
+     * @return whether this source draws the same noise as a new source with a seed
+     */
+    boolean hasSeed(long seed) {
+        return this.seed == mix64(seed);
+    }
+
+    @Override
+    public double gaussian(long step, int id, int component) {
+        // position in the stream, advanced by the golden gamma before every draw
+        long state = mix64(mix64(seed ^ step) + ((long) id << 8 | component));
+
+        while (true) {
+            state += GOLDEN_GAMMA;
+            long bits = mix64(state);
+            // the low bits select the layer, the high bits the value within it
+            int layer = (int) bits & (LAYERS - 1);
+            int value = (int) (bits >> 32);
+            double x = value * W[layer];
+
+            // most values lie within the rectangular part of the layer
+            if (Math.abs((double) value) < K[layer]) return x;
+
+            if (layer == 0) {
+                // sample from the tail beyond R
+                double tailX, tailY;
+                do {
+                    state += GOLDEN_GAMMA;
+                    tailX = -Math.log(uniform(mix64(state))) / R;
+                    state += GOLDEN_GAMMA;
+                    tailY = -Math.log(uniform(mix64(state)));
+                } while (tailY + tailY < tailX * tailX);
+                return value > 0 ? R + tailX : -R - tailX;
+            }
+
+            // accept the value if it lies under the curve in the wedge at the edge of the layer
+            state += GOLDEN_GAMMA;
+            if (F[layer] + uniform(mix64(state)) * (F[layer - 1] - F[layer]) < Math.exp(-0.5 * x * x)) return x;
+        }
+    }
+
+    /**
+     * @param bits random bits
+     * @return a uniform value in (0, 1]
+     */
+    private static double uniform(long bits) {
+        return ((bits >>> 11) + 1) * 0x1.0p-53;
+    }
+
+    /**
+     * the SplitMix64 finaliser, mixes the bits of a value so that nearby inputs give unrelated outputs
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,345 @@
+package com.benjft.activemattertool.simulation;
+
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Tracks the Delta N vs N of a simulation for one or more target averages. Handles following the simulation's frames,
+ * the time averages, the series file and the properties shown by views, leaving subclasses only to estimate the mean
+ * and Delta N of a frame for each target average.
+ *
+ * @param <T> the type of the result of a frame
+ */
+public abstract class DeltaNProcessor<T> implements StateProcessor<T> {
+    // the number of density bins along the side of a box counted window
+    static final int BINS_PER_WINDOW = 8;
+    // the most windows box counted per frame, small windows are placed on a coarser lattice of positions beyond this
+    static final int MAX_WINDOWS = 1 << 14;
+
+    final Simulation sim;
+    private final double[] Nls;
+    private boolean active = true;
+    private final DoubleProperty[] means, values, averages, averageErrors;
+    // the Delta N of every frame worked on from the burn-in step for each target average, averaged over time
+    private final TimeAverage[] timeAverages;
+    private volatile long burnIn = 0;
+    // the file each frame's results are written to, if any
+    private PrintWriter series;
+    // told the step of each frame once its results are recorded, if any
+    private volatile LongConsumer frameListener;
+    // the latest results, readable from any thread
+    private volatile DoublePair[] latest;
+    // the analysis currently running, only touched from the simulation's stepping thread
+    private Future<?> futureValue;
+
+    /**
+     * @param sim the sim to track
+     * @param Nls the target averages
+     */
+    DeltaNProcessor(Simulation sim, double[] Nls) {
+        this.sim = sim;
+        this.Nls = Nls.clone();
+        this.means = new DoubleProperty[Nls.length];
+        this.values = new DoubleProperty[Nls.length];
+        this.averages = new DoubleProperty[Nls.length];
+        this.averageErrors = new DoubleProperty[Nls.length];
+        this.timeAverages = new TimeAverage[Nls.length];
+        this.latest = new DoublePair[Nls.length];
+        for (int j = 0; j < Nls.length; ++j) {
+            means[j] = new SimpleDoubleProperty(Double.NaN);
+            values[j] = new SimpleDoubleProperty(Double.NaN);
+            averages[j] = new SimpleDoubleProperty(Double.NaN);
+            averageErrors[j] = new SimpleDoubleProperty(Double.NaN);
+            timeAverages[j] = new TimeAverage();
+            latest[j] = new DoublePair(Double.NaN, Double.NaN);
+        }
+    }
+
+    /**
+     * sets up the initial values from the latest frame of the simulation and registers to be auto-updated, called by
+     * subclasses once they are ready to work on frames unless they only work on frames passed to {@link #process}
+     */
+    void start() {
+        try (Frame frame = sim.acquireLatestFrame()) {
+            latest = this.getUpdatedValues(frame.getParticles(), frame.getGrid());
+        }
+        for (int j = 0; j < Nls.length; ++j) {
+            means[j].set(latest[j].a);
+            values[j].set(latest[j].b);
+            // the random start isn't averaged, but is shown until the first frame is
+            averages[j].set(latest[j].b);
+        }
+        sim.registerStateProcessor(this);
+    }
+
+    /**
+     * gets the new values for every target average from one frame
+     *
+     * @param state the positions of the particles
+     * @param grid  the resolved grid storing the particles
+     * @return for each target average a pair containing the average in the area, and the standard deviation from
+     * this average
+     */
+    abstract DoublePair[] getUpdatedValues(ParticleStore state, CellList grid);
+
+    /**
+     * @param pairs the mean and Delta N of a frame for each target average
+     * @return the result of the frame
+     */
+    abstract T getResult(DoublePair[] pairs);
+
+    /**
+     * starts working on a newly completed frame, unless the previous frame is still being worked on in which case the
+     * new frame is skipped
+     */
+    @Override
+    public void advance(Frame frame) {
+        if (!this.isActive()) return;
+        if (futureValue != null) {
+            if (!futureValue.isDone()) {
+                sim.getMetrics()
+                   .recordSkippedFrame();
+                return;
+            }
+            // surface any failure in the previous frame's work
+            try {
+                futureValue.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                e.getCause()
+                 .printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        // pin the frame while it is worked on so the simulation won't write over it
+        frame.retain();
+        futureValue = sim.getAnalysisExecutor().submit(() -> {
+            sim.getMetrics()
+               .recordProcessorStart(frame);
+            try {
+                DoublePair[] pairs = this.getUpdatedValues(frame.getParticles(), frame.getGrid());
+                latest = pairs;
+                this.record(frame.getStep(), pairs);
+                final double[] average = new double[pairs.length], error = new double[pairs.length];
+                for (int j = 0; j < pairs.length; ++j) {
+                    average[j] = timeAverages[j].getAverage();
+                    error[j] = timeAverages[j].getError();
+                }
+                FxPublisher.publish(() -> {
+                    for (int j = 0; j < pairs.length; ++j) {
+                        means[j].set(pairs[j].a);
+                        values[j].set(pairs[j].b);
+                        // nothing is averaged until the burn-in is over
+                        if (!Double.isNaN(average[j])) averages[j].set(average[j]);
+                        averageErrors[j].set(error[j]);
+                    }
+                });
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    @Override
+    public T process(Frame frame) {
+        DoublePair[] pairs = this.getUpdatedValues(frame.getParticles(), frame.getGrid());
+        latest = pairs;
+        this.record(frame.getStep(), pairs);
+        return this.getResult(pairs);
+    }
+
+    /**
+     * adds the results of a frame to the time averages if it is past the burn-in, and to the series file if one is
+     * open, then tells the frame listener
+     *
+     * @param step  the step of the frame
+     * @param pairs the mean and Delta N of the frame for each target average
+     */
+    private void record(long step, DoublePair[] pairs) {
+        if (step >= burnIn) for (int j = 0; j < pairs.length; ++j) {
+            timeAverages[j].add(pairs[j].b);
+        }
+        synchronized (this) {
+            if (series != null) for (int j = 0; j < pairs.length; ++j) {
+                series.printf(Locale.ROOT, "%d,%s,%.6f,%.6f%n", step, Nls[j], pairs[j].a, pairs[j].b);
+            }
+        }
+        final LongConsumer listener = frameListener;
+        if (listener != null) listener.accept(step);
+    }
+
+    /**
+     * writes the results of every frame worked on from now to a file, as rows of step, target average, mean and Delta
+     * N, until {@link #closeSeries()} is called. Replaces any file already being written
+     *
+     * @param path the file to write
+     * @throws IOException if the file can't be created
+     */
+    public synchronized void streamSeries(Path path) throws IOException {
+        this.closeSeries();
+        series = new PrintWriter(Files.newBufferedWriter(path));
+        series.println("step,Nl,mean,deltaN");
+    }
+
+    /**
+     * stops writing results to the series file, if one is open
+     */
+    public synchronized void closeSeries() {
+        if (series != null) series.close();
+        series = null;
+    }
+
+    /**
+     * calls a listener with the step of every frame once its results are recorded, on the thread that worked on the
+     * frame. Until the listener returns the next frame isn't recorded, so the values and time averages read from it
+     * are those of that frame
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setFrameListener(LongConsumer listener) {
+        this.frameListener = listener;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    @Override
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    @Override
+    public T getValue() {
+        return this.getResult(latest);
+    }
+
+    /**
+     * @param j the index of the target average
+     * @return the Delta N for that average
+     */
+    public double getValue(int j) {
+        return latest[j].b;
+    }
+
+    public ReadOnlyDoubleProperty getValueProperty(int j) {
+        return values[j];
+    }
+
+    /**
+     * @param j the index of the target average
+     * @return the measured mean for that average
+     */
+    public double getMean(int j) {
+        return latest[j].a;
+    }
+
+    public ReadOnlyDoubleProperty getMeanProperty(int j) {
+        return means[j];
+    }
+
+    /**
+     * @param j the index of the target average
+     * @return the Delta N of every frame worked on for that average, averaged over time
+     */
+    public TimeAverage getTimeAverage(int j) {
+        return timeAverages[j];
+    }
+
+    /**
+     * @param j the index of the target average
+     * @return the Delta N for that average, averaged over time
+     */
+    public double getAverage(int j) {
+        return timeAverages[j].getAverage();
+    }
+
+    /**
+     * @param j the index of the target average
+     * @return the standard error of the Delta N for that average, averaged over time
+     */
+    public double getAverageError(int j) {
+        return timeAverages[j].getError();
+    }
+
+    public ReadOnlyDoubleProperty getAverageProperty(int j) {
+        return averages[j];
+    }
+
+    public ReadOnlyDoubleProperty getAverageErrorProperty(int j) {
+        return averageErrors[j];
+    }
+
+    /**
+     * @return the step before which frames are left out of the time averages
+     */
+    public long getBurnIn() {
+        return burnIn;
+    }
+
+    /**
+     * leaves the frames before a step out of the time averages, so the transient from the random start doesn't bias
+     * them. Frames already averaged are kept, see {@link TimeAverage#reset()} to forget them
+     *
+     * @param burnIn the first step to average, 0 to average every frame
+     */
+    public void setBurnIn(long burnIn) {
+        if (burnIn < 0) throw new IllegalArgumentException("burnIn must not be negative");
+        this.burnIn = burnIn;
+    }
+
+    /**
+     * @param j the index of the target average
+     * @return the target average
+     */
+    public double getNl(int j) {
+        return Nls[j];
+    }
+
+    /**
+     * @return the number of target averages tracked
+     */
+    public int getNScales() {
+        return Nls.length;
+    }
+
+    /**
+     * @return the side of the square window expected to hold the target average at an index on average
+     */
+    double getWindowSize(int j) {
+        return getWindowSize(Nls[j], sim.getPackingFraction());
+    }
+
+    /**
+     * @return the side of the square window expected to hold Nl particles on average at a packing fraction
+     */
+    static double getWindowSize(double Nl, double packingFraction) {
+        return Math.sqrt(Math.PI * 0.25 * Nl / packingFraction);
+    }
+
+    /**
+     * Internal helper class for returning a pair of doubles
+     */
+    static class DoublePair {
+        final double a, b;
+
+        DoublePair(double a, double b) {
+            this.a = a;
+            this.b = b;
+        }
+    }
+}
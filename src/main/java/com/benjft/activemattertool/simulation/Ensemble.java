@@ -0,0 +1,152 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many simulations on one bounded pool of worker threads rather than a thread each.
+ * <p>
+ * Each simulation takes a turn of a few steps then rejoins the back of the pool's queue, so steps are interleaved
+ * fairly between simulations. The simulations' state processors run their work on the same pool, so the ensemble
+ * never keeps more threads busy than it was given.
+ */
+public class Ensemble implements AutoCloseable {
+    private final ExecutorService workers;
+    private final int stepsPerTurn;
+    private final List<Simulation> simulations = new CopyOnWriteArrayList<>();
+    // the number of simulations still taking turns, guarded by this
+    private int running = 0;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param nWorkers the number of worker threads
+     */
+    public Ensemble(int nWorkers) {
+        this(nWorkers, 1);
+    }
+
+    /**
+     * @param nWorkers     the number of worker threads
+     * @param stepsPerTurn the number of steps a simulation takes before giving way to the next
+     */
+    public Ensemble(int nWorkers, int stepsPerTurn) {
+        if (nWorkers < 1) throw new IllegalArgumentException("nWorkers must be at least 1");
+        if (stepsPerTurn < 1) throw new IllegalArgumentException("stepsPerTurn must be at least 1");
+        this.workers = Executors.newFixedThreadPool(nWorkers);
+        this.stepsPerTurn = stepsPerTurn;
+    }
+
+    /**
+     * adds a simulation and starts stepping it. The simulation's processors are moved onto the ensemble's workers, and
+     * the simulation is closed along with the ensemble.
+     *
+     * @param sim      the simulation to run, which must not be stepped by anything else
+     * @param maxSteps the step to stop at, or 0 to run until the ensemble is closed
+     */
+    public void add(Simulation sim, long maxSteps) {
+        synchronized (this) {
+            if (stopped) throw new IllegalStateException("ensemble has been closed");
+            ++running;
+        }
+        sim.setAnalysisExecutor(workers);
+        simulations.add(sim);
+        workers.execute(new Turn(sim, maxSteps));
+    }
+
+    /**
+     * waits for every simulation to reach its step limit
+     *
+     * @param timeout the longest to wait
+     * @param unit    the unit of the timeout
+     * @return true if every simulation finished, false if the wait timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        final long end = System.nanoTime() + remaining;
+        while (running > 0) {
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = end - System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * @return the simulations in the ensemble
+     */
+    public List<Simulation> getSimulations() {
+        return simulations;
+    }
+
+    /**
+     * stops every simulation after its current turn, lets queued processor work finish, then shuts down the workers
+     * and closes the simulations. If interrupted while waiting, queued work is cancelled and the interrupt is kept, see
+     * {@link #awaitCompletion(long, TimeUnit)} to wait on the simulations without closing them.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                stopped = true;
+                // turns check the flag before taking steps, so this only waits for the turns already running
+                while (running > 0) {
+                    this.wait();
+                }
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread()
+                  .interrupt();
+        }
+        for (Simulation sim : simulations) {
+            sim.close();
+        }
+    }
+
+    private synchronized void finished() {
+        --running;
+        this.notifyAll();
+    }
+
+    /**
+     * A single turn of a simulation, which requeues itself until the simulation is done.
+     */
+    private class Turn implements Runnable {
+        private final Simulation sim;
+        private final long maxSteps;
+
+        Turn(Simulation sim, long maxSteps) {
+            this.sim = sim;
+            this.maxSteps = maxSteps;
+        }
+
+        @Override
+        public void run() {
+            boolean requeued = false;
+            try {
+                for (int i = 0; i < stepsPerTurn && !this.isDone(); ++i) {
+                    sim.step();
+                }
+                if (!this.isDone()) {
+                    workers.execute(this);
+                    requeued = true;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                // a simulation that fails, even with an Error, is finished so nothing waits on it forever
+                if (!requeued) finished();
+            }
+        }
+
+        private boolean isDone() {
+            return stopped || (maxSteps > 0 && sim.getStep() >= maxSteps);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Fixed step Euler-Maruyama integration, the deltas at the start of the step are applied for the whole step.
+ */
+public class EulerIntegrator implements Integrator {
+    private double[] deltaX, deltaY, deltaTheta;
+
+    @Override
+    public void integrate(Simulation sim, ParticleStore from, CellList cells, ParticleStore to) {
+        if (deltaX == null) {
+            deltaX = new double[from.size()];
+            deltaY = new double[from.size()];
+            deltaTheta = new double[from.size()];
+        }
+
+        sim.getDeltas(from, cells, 0, 1, deltaX, deltaY, deltaTheta);
+        sim.applyDeltas(from, to, sim.getDTime(), deltaX, deltaY, deltaTheta);
+    }
+
+    @Override
+    public long estimateScratchBytes(long nParticles, long nCells) {
+        return 3 * Double.BYTES * nParticles;
+    }
+}
@@ -0,0 +1,469 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Calculates the deltas due to collisions between particles, splitting the columns of the grid into strips that can
+ * be processed on separate threads, or scanning a {@link NeighbourList} when one is set.
+ * <p>
+ * Each pair of particles is only visited once, with the force applied to both, so processing a strip writes to the
+ * columns either side of it. Strips are coloured alternately and all strips of one colour are processed before any of
+ * the other, so no two threads ever write to the same particle. The strips depend only on the size of the grid, not
+ * on the number of threads, so the result is the same whatever the thread count.
+ */
+class ForceKernel {
+    // strips narrower than this are not worth the overhead of a task
+    private static final int MIN_STRIP_WIDTH = 4;
+
+    private final double width, height, k;
+    private final int nCols, nRows;
+    // the first column of each strip, with the end of the last strip appended
+    private final int[] stripStart;
+    private final List<Callable<Void>> evenStrips = new ArrayList<>(), oddStrips = new ArrayList<>();
+    // one task per worker thread, each running rangeAction on its share of rangeN particles
+    private final List<Callable<Void>> rangeTasks = new ArrayList<>();
+    // the pairs checked and found in contact by each strip in the last apply, each only written by its own strip
+    private final long[] stripTests, stripInteractions;
+    private ExecutorService executor;
+    private int nThreads = 1;
+    // used in place of the strips when set
+    private NeighbourList neighbourList;
+    // a store already found to be covered by the neighbour list, so the next apply to it needn't check again
+    private ParticleStore checked;
+    private boolean rebuilt;
+    private long lastInteractions;
+
+    // state for the step currently being calculated, set before the strip tasks are run
+    private ParticleStore particles;
+    private CellList cells;
+    private double[] deltaX, deltaY;
+    private boolean counting;
+    // a kernel for runs of consecutive particles for each strip, as kernels hold scratch space, or null when there is
+    // none. Used for runs of at least minimumRun, which is only set while the particles are in cell order
+    private final RunKernel[] stripKernels;
+    private int minimumRun = Integer.MAX_VALUE;
+
+    // state for the range tasks, set before they are run
+    private int rangeN;
+    private RangeAction rangeAction;
+    private IntConsumer particleAction;
+    private ParticleStore listParticles;
+    // the result of each range, each only written by its own range
+    private boolean[] rangeMoved;
+    private long[] rangeInteractions;
+    // the actions run over ranges each step, built once so stepping allocates nothing
+    private final RangeAction eachParticle, checkMoved, collectNeighbours, applyNeighbours;
+
+    ForceKernel(double width, double height, double k, int nCols, int nRows) {
+        this.width = width;
+        this.height = height;
+        this.k = k;
+        this.nCols = nCols;
+        this.nRows = nRows;
+
+        // strips must be at least two columns wide and come in an even number so the colours alternate around the
+        // periodic boundary. Small grids are handled as a single strip
+        int nStrips = (nCols / MIN_STRIP_WIDTH) & ~1;
+        if (nStrips < 2) nStrips = 1;
+        this.stripStart = new int[nStrips + 1];
+        for (int strip = 0; strip <= nStrips; ++strip) {
+            stripStart[strip] = (int) ((long) strip * nCols / nStrips);
+        }
+        this.stripTests = new long[nStrips];
+        this.stripInteractions = new long[nStrips];
+        RunKernel[] kernels = new RunKernel[nStrips];
+        for (int strip = 0; strip < nStrips; ++strip) {
+            kernels[strip] = RunKernel.newVector();
+        }
+        this.stripKernels = kernels[0] == null ? null : kernels;
+        for (int strip = 0; strip < nStrips; ++strip) {
+            final int first = stripStart[strip], last = stripStart[strip + 1], index = strip;
+            final RunKernel kernel = kernels[strip];
+            Callable<Void> task = () -> {
+                long tests = 0, interactions = 0;
+                for (int col = first; col < last; ++col) {
+                    if (counting) tests += this.countTests(col);
+                    interactions += this.applyColumn(col, kernel);
+                }
+                stripTests[index] = tests;
+                stripInteractions[index] = interactions;
+                return null;
+            };
+            if (strip % 2 == 0) evenStrips.add(task);
+            else oddStrips.add(task);
+        }
+
+        this.eachParticle = (chunk, first, last) -> {
+            final IntConsumer action = particleAction;
+            for (int i = first; i < last; ++i) {
+                action.accept(i);
+            }
+        };
+        this.checkMoved = (chunk, first, last) -> rangeMoved[chunk] = neighbourList.hasMovedTooFar(listParticles,
+                first, last);
+        this.collectNeighbours = (chunk, first, last) -> neighbourList.collect(chunk, particles, cells, first, last);
+        this.applyNeighbours = (chunk, first, last) -> rangeInteractions[chunk] = neighbourList.apply(particles, k,
+                deltaX, deltaY, first, last);
+        this.setRanges(1);
+    }
+
+    /**
+     * builds one range task for each worker thread
+     */
+    private void setRanges(int nThreads) {
+        rangeTasks.clear();
+        for (int chunk = 0; chunk < nThreads; ++chunk) {
+            final int index = chunk;
+            rangeTasks.add(() -> {
+                final int n = rangeN;
+                rangeAction.run(index, (int) ((long) index * n / nThreads), (int) ((long) (index + 1) * n / nThreads));
+                return null;
+            });
+        }
+        this.rangeMoved = new boolean[nThreads];
+        this.rangeInteractions = new long[nThreads];
+    }
+
+    /**
+     * sets the number of threads used to calculate the deltas
+     *
+     * @param nThreads the number of threads, 1 processes every strip on the calling thread
+     */
+    void setThreads(int nThreads) {
+        if (executor != null) executor.shutdown();
+        executor = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+        this.nThreads = nThreads;
+        this.setRanges(nThreads);
+    }
+
+    /**
+     * stops the worker threads
+     */
+    void close() {
+        if (executor != null) executor.shutdown();
+    }
+
+    /**
+     * runs an action for every particle, split across the worker threads. Each particle must only be written to by
+     * its own action.
+     *
+     * @param n      the number of particles
+     * @param action the action to run on each particle index
+     */
+    void forEachParticle(int n, IntConsumer action) {
+        this.particleAction = action;
+        try {
+            this.forEachRange(n, eachParticle);
+        } finally {
+            this.particleAction = null;
+        }
+    }
+
+    /**
+     * splits the particles into one contiguous range per worker thread and runs an action on each range
+     *
+     * @param n      the number of particles
+     * @param action the action to run on each range
+     */
+    private void forEachRange(int n, RangeAction action) {
+        this.rangeN = n;
+        this.rangeAction = action;
+        this.run(rangeTasks);
+    }
+
+    /**
+     * An action on a range of particles, given the index of the range.
+     */
+    private interface RangeAction {
+        void run(int chunk, int first, int last);
+    }
+
+    /**
+     * sets a neighbour list to find collisions from, or null to search the neighbouring cells each time
+     *
+     * @param neighbourList the list to use, which must be for the same simulation
+     */
+    void setNeighbourList(NeighbourList neighbourList) {
+        this.neighbourList = neighbourList;
+        this.checked = null;
+    }
+
+    NeighbourList getNeighbourList() {
+        return neighbourList;
+    }
+
+    /**
+     * checks whether the neighbour list can still be used for a state, remembering the answer so that applying it to
+     * the same state doesn't check again
+     *
+     * @param particles the particles to check, in the same order as when the list was built
+     * @return false if there is no list, or it must be rebuilt before finding the collisions of the state
+     */
+    boolean isNeighbourListCurrent(ParticleStore particles) {
+        final NeighbourList list = neighbourList;
+        if (list == null || !list.isValid()) return false;
+        this.listParticles = particles;
+        this.forEachRange(particles.size(), checkMoved);
+        this.listParticles = null;
+        for (boolean chunk : rangeMoved) {
+            if (chunk) return false;
+        }
+        checked = particles;
+        return true;
+    }
+
+    /**
+     * marks the neighbour list as needing a rebuild, which must be done whenever the particles are reordered
+     */
+    void invalidateNeighbourList() {
+        if (neighbourList != null) neighbourList.invalidate();
+        checked = null;
+    }
+
+    /**
+     * @return true if the last {@link #apply} rebuilt the neighbour list
+     */
+    boolean wasNeighbourListRebuilt() {
+        return rebuilt;
+    }
+
+    /**
+     * adds the deltas due to collisions to the passed arrays
+     *
+     * @param particles the particles to calculate collisions between
+     * @param cells     the cell list of the particles
+     * @param deltaX    the x deltas for each particle
+     * @param deltaY    the y deltas for each particle
+     * @param counting  true to count the pairs checked for contact, see {@link #getPairTests()}
+     */
+    void apply(ParticleStore particles, CellList cells, double[] deltaX, double[] deltaY, boolean counting) {
+        this.particles = particles;
+        this.cells = cells;
+        this.deltaX = deltaX;
+        this.deltaY = deltaY;
+        this.counting = counting;
+        this.minimumRun = cells.isSorted() && stripKernels != null ? stripKernels[0].getMinimumRun()
+                                                                   : Integer.MAX_VALUE;
+        this.rebuilt = false;
+        if (neighbourList != null) {
+            this.applyNeighbourList(neighbourList);
+            return;
+        }
+
+        // a single strip writes on both sides of itself, so it can't be run at the same time as anything else
+        this.run(evenStrips);
+        this.run(oddStrips);
+    }
+
+    /**
+     * finds the collisions from the neighbour list, first rebuilding it from the cell list if any particle may have
+     * come into contact with a particle not in its list
+     */
+    private void applyNeighbourList(NeighbourList list) {
+        final int n = particles.size();
+        if (particles != checked && !this.isNeighbourListCurrent(particles)) {
+            list.prepare(nThreads);
+            this.forEachRange(n, collectNeighbours);
+            list.join();
+            rebuilt = true;
+        }
+        checked = null;
+
+        this.forEachRange(n, applyNeighbours);
+        long total = 0;
+        for (long chunk : rangeInteractions) {
+            total += chunk;
+        }
+        // each pair is found from both sides
+        lastInteractions = total / 2;
+    }
+
+    /**
+     * @return the number of distance checks made for contacts by the last {@link #apply}, if it was counting
+     */
+    long getPairTests() {
+        if (neighbourList != null) return neighbourList.size();
+        long tests = 0;
+        for (long strip : stripTests) {
+            tests += strip;
+        }
+        return tests;
+    }
+
+    /**
+     * @return the number of particle pairs found in contact by the last {@link #apply}
+     */
+    long getInteractions() {
+        if (neighbourList != null) return lastInteractions;
+        long interactions = 0;
+        for (long strip : stripInteractions) {
+            interactions += strip;
+        }
+        return interactions;
+    }
+
+    private void run(List<Callable<Void>> strips) {
+        if (executor == null) {
+            for (Callable<Void> strip : strips) try {
+                strip.call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } else try {
+            for (Future<Void> future : executor.invokeAll(strips)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // the deltas are only partly filled, so the step can't carry on
+            Thread.currentThread()
+                  .interrupt();
+            throw new RuntimeException("interrupted while finding collisions", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * counts the pairs of particles {@link #applyColumn(int, RunKernel)} checks in a column, from the sizes of the
+     * cells alone
+     *
+     * @param col the column to count
+     * @return the number of pairs checked
+     */
+    private long countTests(int col) {
+        final CellList cells = this.cells;
+        final int colLeft = col == 0 ? nCols - 1 : col - 1, colRight = col == nCols - 1 ? 0 : col + 1;
+        long tests = 0;
+        for (int row = 0; row < nRows; ++row) {
+            long n = cells.getCellSize(cells.getCell(col, row));
+            if (n == 0) continue;
+            int rowUp = row == 0 ? nRows - 1 : row - 1;
+            tests += n * (n - 1) / 2 + n * (cells.getCellSize(cells.getCell(colLeft, row))
+                    + cells.getCellSize(cells.getCell(colLeft, rowUp)) + cells.getCellSize(cells.getCell(col, rowUp))
+                    + cells.getCellSize(cells.getCell(colRight, rowUp)));
+        }
+        return tests;
+    }
+
+    /**
+     * applies the collisions of each particle in a column with the particles in some adjacent cells
+     *
+     * @param col    the column to apply
+     * @param kernel the strip's kernel for runs of consecutive particles, or null if there is none
+     * @return the number of pairs found in contact
+     */
+    private long applyColumn(int col, RunKernel kernel) {
+        final CellList cells = this.cells;
+
+        // indices of adjacent columns (and corrections for if they're off the side)
+        int colLeft = col - 1;
+        double dLeft = 0;
+        int colRight = col + 1;
+        double dRight = 0;
+        if (colLeft < 0) {
+            colLeft = nCols - 1;
+            dLeft = -this.width;
+        } else if (colRight >= nCols) {
+            colRight = 0;
+            dRight = this.width;
+        }
+
+        long interactions = 0;
+        // iterates through the cell of the column
+        for (int row = 0; row < nRows; ++row) {
+            int cell = cells.getCell(col, row);
+            int start = cells.cellStart[cell], end = cells.cellStart[cell + 1];
+            // if the cell is empty nothing needs to be done so continue from the next cell
+            if (start == end) continue;
+
+            // find the index of the row directly above. (accounts for wrapping)
+            int rowUp = row - 1;
+            double dUp = 0;
+            if (rowUp < 0) {
+                rowUp = nRows - 1;
+                dUp = -this.height;
+            }
+
+            int left = cells.getCell(colLeft, row);
+            int leftUp = cells.getCell(colLeft, rowUp);
+            int up = cells.getCell(col, rowUp);
+            int rightUp = cells.getCell(colRight, rowUp);
+
+            // checks collisions for each particle in the cell with particles in some adjacent cells
+            for (int pos = start; pos < end; ++pos) {
+                int idx = cells.cellIndex[pos];
+
+                // only later particles in the same cell so each pair is seen once
+                interactions += this.applyRun(kernel, idx, pos + 1, end, 0, 0);
+                interactions += this.applyRun(kernel, idx, cells.cellStart[left], cells.cellStart[left + 1], dLeft,
+                        0);
+                interactions += this.applyRun(kernel, idx, cells.cellStart[leftUp], cells.cellStart[leftUp + 1],
+                        dLeft, dUp);
+                interactions += this.applyRun(kernel, idx, cells.cellStart[up], cells.cellStart[up + 1], 0, dUp);
+                interactions += this.applyRun(kernel, idx, cells.cellStart[rightUp], cells.cellStart[rightUp + 1],
+                        dRight, dUp);
+            }
+        }
+        return interactions;
+    }
+
+    /**
+     * applies the delta due to collisions between the passed particle and a run of particles in the cell list, with
+     * the vector kernel if there is one, the particles are in cell order and the run is long enough to fill a vector.
+     * With cells about one particle across most runs are shorter, so the vector kernel only helps in dense systems
+     *
+     * @return the number of particles in contact with the passed particle
+     */
+    private int applyRun(RunKernel kernel, int idx1, int from, int to, double shiftX, double shiftY) {
+        if (to - from < minimumRun) return this.calculateDeltas(idx1, from, to, shiftX, shiftY);
+        // in cell order, the positions in the cell list are the indices of the particles
+        return kernel.apply(particles.x, particles.y, deltaX, deltaY, idx1, from, to, shiftX, shiftY, k);
+    }
+
+    /**
+     * applies the delta due to collisions between the passed particle and a run of particles in the cell list
+     *
+     * @param idx1   the index of the particle
+     * @param from   the first position in the cell list to check
+     * @param to     the position in the cell list to stop at
+     * @param shiftX correction for periodic bounds
+     * @param shiftY correction for periodic bounds
+     * @return the number of particles in contact with the passed particle
+     */
+    private int calculateDeltas(int idx1, int from, int to, double shiftX, double shiftY) {
+        final double[] xs = this.particles.x, ys = this.particles.y;
+        final double[] deltaX = this.deltaX, deltaY = this.deltaY;
+        final int[] cellIndex = this.cells.cellIndex;
+        final double x1 = xs[idx1], y1 = ys[idx1];
+        int interactions = 0;
+        // itterate over each particle in the run
+        for (int pos = from; pos < to; ++pos) {
+            int idx2 = cellIndex[pos];
+            // distance from particle 1
+            double dX = shiftX + xs[idx2] - x1;
+            double dY = shiftY + ys[idx2] - y1;
+            double r = dX * dX + dY * dY;
+
+            // if r squared < (2*particle_radius) squared calculate interaction.
+            if (r < 1 && r != 0) {
+                r = Math.sqrt(r);
+                // interaction magnitude
+                double f = -k * (1 - r) / r;
+                // components resolved onto each particle
+                deltaX[idx1] += f * dX;
+                deltaY[idx1] += f * dY;
+                deltaX[idx2] -= f * dX;
+                deltaY[idx2] -= f * dY;
+                ++interactions;
+            }
+        }
+        return interactions;
+    }
+}
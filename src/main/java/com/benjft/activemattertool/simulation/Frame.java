@@ -0,0 +1,68 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A completed state of a simulation: the particles, their cell list and the step they were produced at. Frames are
+ * held in a ring and reused, so a frame must be pinned with {@link #retain()} while it is being read and released
+ * afterwards, which stops the simulation writing over it. Frames handed out by
+ * {@link Simulation#acquireLatestFrame()} are already pinned, and can be released by closing them.
+ */
+public class Frame implements AutoCloseable {
+    // marks a frame as being written to, it can't be pinned until it has been published
+    static final int WRITING = -1;
+
+    ParticleStore particles;
+    final CellList grid;
+    long step;
+    // when the frame was published by System.nanoTime, or 0 if the simulation's metrics were off
+    long published;
+    // the number of readers holding the frame, or WRITING
+    final AtomicInteger pins = new AtomicInteger(0);
+
+    Frame(ParticleStore particles, CellList grid) {
+        this.particles = particles;
+        this.grid = grid;
+    }
+
+    public ParticleStore getParticles() {
+        return particles;
+    }
+
+    public CellList getGrid() {
+        return grid;
+    }
+
+    /**
+     * @return the number of integration steps taken to reach this frame
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * pins the frame so it won't be reused until released. Frames passed to {@link StateProcessor#advance(Frame)} can
+     * always be pinned during that call.
+     *
+     * @return false if the frame is already being reused, in which case it must not be read or released
+     */
+    public boolean retain() {
+        while (true) {
+            int current = pins.get();
+            if (current == WRITING) return false;
+            if (pins.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * releases a pin taken on the frame
+     */
+    public void release() {
+        pins.decrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        this.release();
+    }
+}
@@ -0,0 +1,88 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The frames of a simulation, reused in rotation. A single stepping thread claims a free frame, writes the next state
+ * into it and publishes it as the latest frame, while any number of readers pin frames to read them. The ring grows
+ * (up to a limit) when every frame is pinned, so slow readers don't hold up stepping unless they pin more frames than
+ * the limit allows.
+ */
+class FrameRing {
+    private Frame[] frames;
+    private volatile Frame latest;
+
+    /**
+     * @param initial the first frame, which is published straight away
+     */
+    FrameRing(Frame initial) {
+        this.frames = new Frame[]{initial};
+        this.latest = initial;
+    }
+
+    /**
+     * @return the most recently published frame, not pinned
+     */
+    Frame getLatest() {
+        return latest;
+    }
+
+    /**
+     * @return the most recently published frame, pinned for the caller
+     */
+    Frame acquireLatest() {
+        while (true) {
+            Frame frame = latest;
+            if (frame.retain()) {
+                // the frame may have been replaced and reused before it was pinned
+                if (frame == latest) return frame;
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * claims a frame to write the next state into, growing the ring or waiting if every frame is in use. Only called
+     * from the stepping thread.
+     *
+     * @param maxFrames the most frames the ring may hold
+     * @param factory   creates a new frame if the ring grows
+     * @return the claimed frame
+     */
+    Frame claim(int maxFrames, Supplier<Frame> factory) {
+        while (true) {
+            for (Frame frame : frames) {
+                if (frame != latest && frame.pins.compareAndSet(0, Frame.WRITING)) return frame;
+            }
+            if (frames.length < maxFrames) {
+                Frame frame = factory.get();
+                frame.pins.set(Frame.WRITING);
+                Frame[] grown = new Frame[frames.length + 1];
+                System.arraycopy(frames, 0, grown, 0, frames.length);
+                grown[frames.length] = frame;
+                frames = grown;
+                return frame;
+            }
+            // every frame is pinned, wait for a reader to finish
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    /**
+     * makes a claimed frame the latest, allowing readers to pin it
+     *
+     * @param frame the frame that has been written
+     */
+    void publish(Frame frame) {
+        frame.pins.set(0);
+        latest = frame;
+    }
+
+    /**
+     * @return the number of frames in the ring
+     */
+    int size() {
+        return frames.length;
+    }
+}
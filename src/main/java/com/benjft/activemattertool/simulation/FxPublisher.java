@@ -0,0 +1,25 @@
+package com.benjft.activemattertool.simulation;
+
+import javafx.application.Platform;
+
+/**
+ * Applies updates to JavaFX properties on the JavaFX application thread, so listeners (such as charts) are safe to
+ * touch the scene graph. Without a running toolkit, as in headless runs, updates are applied on the calling thread.
+ */
+final class FxPublisher {
+    private static volatile boolean toolkitRunning = true;
+
+    private FxPublisher() {
+    }
+
+    static void publish(Runnable update) {
+        if (toolkitRunning) try {
+            Platform.runLater(update);
+            return;
+        } catch (IllegalStateException e) {
+            // the toolkit has not been started, so there is no application thread to update on
+            toolkitRunning = false;
+        }
+        update.run();
+    }
+}
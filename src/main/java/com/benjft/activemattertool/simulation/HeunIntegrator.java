@@ -0,0 +1,51 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Stochastic Heun (second order Runge-Kutta) integration. A trial Euler step is taken, then the particles are moved by
+ * the average of the deltas at the start and at the end of the trial step. Both use the same noise, so only the
+ * deterministic part of the motion is averaged.
+ * <p>
+ * Each step costs two force calculations, but errors shrink with the square of the timestep so a larger timestep can
+ * be used for the same accuracy.
+ */
+public class HeunIntegrator implements Integrator {
+    private double[] deltaX, deltaY, deltaTheta, trialX, trialY, trialTheta;
+    private ParticleStore trial;
+    private CellList trialCells;
+
+    @Override
+    public void integrate(Simulation sim, ParticleStore from, CellList cells, ParticleStore to) {
+        final int n = from.size();
+        if (trial == null) {
+            deltaX = new double[n];
+            deltaY = new double[n];
+            deltaTheta = new double[n];
+            trialX = new double[n];
+            trialY = new double[n];
+            trialTheta = new double[n];
+            trial = new ParticleStore(n);
+            trialCells = sim.newCellList();
+        }
+
+        // trial Euler step
+        sim.getDeltas(from, cells, 0, 1, deltaX, deltaY, deltaTheta);
+        sim.applyDeltas(from, trial, sim.getDTime(), deltaX, deltaY, deltaTheta);
+
+        // deltas at the end of the trial step, drawing the same noise as the start
+        sim.formCells(trial, trialCells);
+        sim.getDeltas(trial, trialCells, 0, 1, trialX, trialY, trialTheta);
+
+        for (int i = 0; i < n; ++i) {
+            deltaX[i] = 0.5 * (deltaX[i] + trialX[i]);
+            deltaY[i] = 0.5 * (deltaY[i] + trialY[i]);
+            deltaTheta[i] = 0.5 * (deltaTheta[i] + trialTheta[i]);
+        }
+        sim.applyDeltas(from, to, sim.getDTime(), deltaX, deltaY, deltaTheta);
+    }
+
+    @Override
+    public long estimateScratchBytes(long nParticles, long nCells) {
+        return 6 * Double.BYTES * nParticles + ParticleStore.BYTES_PER_PARTICLE * nParticles
+                + CellList.estimateBytes(nParticles, nCells);
+    }
+}
@@ -0,0 +1,32 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * A scheme for advancing the particles of a simulation by one timestep. Implementations keep scratch space sized to
+ * the simulation, so an instance must only be used by a single simulation.
+ * <p>
+ * As in the original Euler scheme, the noise in each step is treated as a rate, so its contribution scales with the
+ * timestep rather than its square root.
+ */
+public interface Integrator {
+
+    /**
+     * advances the particles by a single step of the simulation's timestep
+     *
+     * @param sim   the simulation being integrated
+     * @param from  the particles at the start of the step
+     * @param cells the cell list of the particles at the start of the step
+     * @param to    the store to write the particles at the end of the step into
+     */
+    void integrate(Simulation sim, ParticleStore from, CellList cells, ParticleStore to);
+
+    /**
+     * estimates the scratch space kept for a simulation, for bounding the memory a simulation uses
+     *
+     * @param nParticles the number of particles in the simulation
+     * @param nCells     the number of cells in the simulation's grid
+     * @return the size in bytes, or 0 if unknown
+     */
+    default long estimateScratchBytes(long nParticles, long nCells) {
+        return 0;
+    }
+}
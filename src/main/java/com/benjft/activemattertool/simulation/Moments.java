@@ -0,0 +1,114 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Running central moments of a sample, up to the fourth, updated one value at a time with the Welford method and
+ * combined with the pairwise formulas of Pebay (2008). Counts are weights rather than integers, so older samples can be
+ * down-weighted with {@link #scale(double)}.
+ */
+class Moments {
+    private double count, mean, m2, m3, m4;
+
+    /**
+     * adds a single value with a weight of 1
+     *
+     * @param x the value
+     */
+    void add(double x) {
+        final double n1 = count;
+        final double n = ++count;
+        final double delta = x - mean;
+        final double deltaN = delta / n;
+        final double deltaN2 = deltaN * deltaN;
+        final double term1 = delta * deltaN * n1;
+
+        mean += deltaN;
+        m4 += term1 * deltaN2 * (n * n - 3 * n + 3) + 6 * deltaN2 * m2 - 4 * deltaN * m3;
+        m3 += term1 * deltaN * (n - 2) - 3 * deltaN * m2;
+        m2 += term1;
+    }
+
+    /**
+     * adds every value of another set of moments to this one
+     *
+     * @param other the moments to merge in, which is left unchanged
+     */
+    void merge(Moments other) {
+        if (other.count == 0) return;
+        if (count == 0) {
+            this.copyFrom(other);
+            return;
+        }
+        final double nA = count, nB = other.count, n = nA + nB;
+        final double delta = other.mean - mean;
+        final double delta2 = delta * delta;
+
+        final double newM4 = m4 + other.m4 + delta2 * delta2 * nA * nB * (nA * nA - nA * nB + nB * nB) / (n * n * n)
+                + 6 * delta2 * (nA * nA * other.m2 + nB * nB * m2) / (n * n)
+                + 4 * delta * (nA * other.m3 - nB * m3) / n;
+        final double newM3 = m3 + other.m3 + delta2 * delta * nA * nB * (nA - nB) / (n * n)
+                + 3 * delta * (nA * other.m2 - nB * m2) / n;
+        m2 += other.m2 + delta2 * nA * nB / n;
+        m3 = newM3;
+        m4 = newM4;
+        mean += delta * nB / n;
+        count = n;
+    }
+
+    /**
+     * multiplies the weight of every value so far, leaving their mean and shape unchanged
+     *
+     * @param factor the weight to multiply by, 0 forgets every value
+     */
+    void scale(double factor) {
+        count *= factor;
+        m2 *= factor;
+        m3 *= factor;
+        m4 *= factor;
+        if (count == 0) mean = 0;
+    }
+
+    void copyFrom(Moments other) {
+        count = other.count;
+        mean = other.mean;
+        m2 = other.m2;
+        m3 = other.m3;
+        m4 = other.m4;
+    }
+
+    void clear() {
+        this.scale(0);
+    }
+
+    /**
+     * @return the total weight of the values
+     */
+    double getCount() {
+        return count;
+    }
+
+    double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return the unbiased sample variance
+     */
+    double getVariance() {
+        return count > 1 ? m2 / (count - 1) : 0;
+    }
+
+    /**
+     * estimates the standard error of the sample standard deviation relative to its value, from the fourth moment so
+     * that it holds for distributions that aren't normal. Values are assumed independent.
+     *
+     * @return the relative standard error, 0 if every value is the same and infinite with fewer than 4 values
+     */
+    double getRelativeErrorOfDeviation() {
+        if (count < 4) return Double.POSITIVE_INFINITY;
+        final double variance = m2 / count;
+        if (variance <= 0) return 0;
+        // variance of the sample variance, then propagated to the standard deviation
+        final double varianceOfVariance = (m4 / count - variance * variance * (count - 3) / (count - 1)) / count;
+        return Math.sqrt(Math.max(varianceOfVariance, 0)) / (2 * variance);
+    }
+}
@@ -0,0 +1,251 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.Arrays;
+
+/**
+ * A Verlet neighbour list: for each particle, every other particle within one diameter plus a skin, found from the
+ * cell list and stored in one flat array with an offset for each particle. While no particle has moved more than half
+ * the skin since the list was built, every pair in contact is in the list, so collisions can be found by scanning it
+ * instead of the neighbouring cells.
+ * <p>
+ * The list holds every neighbour of each particle, so each pair is stored twice and each particle only ever writes its
+ * own deltas. Ranges of particles can then be processed on any number of threads, with each particle's deltas summed
+ * in the same order whatever the thread count. The list refers to particles by their index in the store, so must be
+ * invalidated whenever the particles are reordered.
+ */
+class NeighbourList {
+    private final double width, height, cellWidth, cellHeight;
+    private final int nCols, nRows;
+    private final double skin, radiusSquared, maxDisplacementSquared;
+
+    // the positions of the particles when the list was built
+    private final double[] builtX, builtY;
+    // the neighbours of particle i are neighbours[start[i]] to neighbours[start[i + 1]]
+    private final int[] start;
+    private int[] neighbours = new int[0];
+    // the neighbours found by each range of particles during a build, and the end of each range
+    private int[][] buffers = new int[0][];
+    private int[] rangeEnds = new int[0];
+    private boolean valid = false;
+
+    /**
+     * @param sim  the simulation the list is for
+     * @param skin the distance beyond contact to include neighbours from
+     */
+    NeighbourList(Simulation sim, double skin) {
+        if (!(skin > 0)) throw new IllegalArgumentException("skin must be positive");
+        this.width = sim.getWidth();
+        this.height = sim.getHeight();
+        this.cellWidth = sim.getCellWidth();
+        this.cellHeight = sim.getCellHeight();
+        this.nCols = sim.getNCols();
+        this.nRows = sim.getNRows();
+        this.skin = skin;
+        this.radiusSquared = (1 + skin) * (1 + skin);
+        this.maxDisplacementSquared = 0.25 * skin * skin;
+        // a cell reached from both sides would list its particles twice
+        if (Math.ceil(2 * (1 + skin) / cellWidth) + 1 > nCols || Math.ceil(2 * (1 + skin) / cellHeight) + 1 > nRows)
+            throw new IllegalArgumentException("skin is too large for the size of the simulation");
+
+        final int n = sim.getNParticles();
+        this.builtX = new double[n];
+        this.builtY = new double[n];
+        this.start = new int[n + 1];
+    }
+
+    /**
+     * estimates the size of a list, which varies with how many neighbours each particle has
+     *
+     * @param nParticles the number of particles
+     * @param density    the number of particles per unit area
+     * @param skin       the distance beyond contact to include neighbours from
+     * @return the size in bytes
+     */
+    static long estimateBytes(long nParticles, double density, double skin) {
+        final double entries = nParticles * density * Math.PI * (1 + skin) * (1 + skin);
+        // the positions and offsets, then the list with room to grow and the buffers it is collected in, which
+        // grow by doubling
+        return (2 * Double.BYTES + Integer.BYTES) * nParticles + (long) (entries * Integer.BYTES * 3.125);
+    }
+
+    double getSkin() {
+        return skin;
+    }
+
+    /**
+     * @return false if the list has been invalidated or never built
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * marks the list as needing a rebuild, as when the particles are reordered
+     */
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * @param particles the particles the list was built from, moved since
+     * @param first     the first particle to check
+     * @param last      the particle to stop before
+     * @return true if any of the particles has moved more than half the skin since the list was built
+     */
+    boolean hasMovedTooFar(ParticleStore particles, int first, int last) {
+        final double[] xs = particles.x, ys = particles.y;
+        final double halfWidth = 0.5 * width, halfHeight = 0.5 * height;
+        for (int i = first; i < last; ++i) {
+            double dX = xs[i] - builtX[i], dY = ys[i] - builtY[i];
+            // particles may have wrapped around the boundary since
+            if (dX > halfWidth) dX -= width;
+            else if (dX < -halfWidth) dX += width;
+            if (dY > halfHeight) dY -= height;
+            else if (dY < -halfHeight) dY += height;
+            if (dX * dX + dY * dY > maxDisplacementSquared) return true;
+        }
+        return false;
+    }
+
+    /**
+     * makes room for a build split into some number of ranges of particles
+     *
+     * @param nRanges the number of ranges the particles are split into
+     */
+    void prepare(int nRanges) {
+        if (buffers.length < nRanges) buffers = Arrays.copyOf(buffers, nRanges);
+        for (int range = 0; range < nRanges; ++range) {
+            if (buffers[range] == null) buffers[range] = new int[1024];
+        }
+        rangeEnds = new int[nRanges];
+    }
+
+    /**
+     * finds the neighbours of a range of particles from the cells they can lie in, the parallel part of a build. Each
+     * range collects its neighbours in a buffer of its own, which {@link #join()} then joins into the list.
+     *
+     * @param range     the index of the range
+     * @param particles the particles to build the list from
+     * @param cells     the cell list of the particles
+     * @param first     the first particle of the range
+     * @param last      the particle to stop before
+     */
+    void collect(int range, ParticleStore particles, CellList cells, int first, int last) {
+        final double[] xs = particles.x, ys = particles.y;
+        final int[] cellStart = cells.cellStart, cellIndex = cells.cellIndex;
+        final double halfWidth = 0.5 * width, halfHeight = 0.5 * height, radius = 1 + skin;
+        int[] buffer = buffers[range];
+        int size = 0;
+
+        for (int i = first; i < last; ++i) {
+            final double x = xs[i], y = ys[i];
+            // only the cells overlapping the square around the particle can hold neighbours
+            final int firstCol = (int) Math.floor((x - radius) / cellWidth);
+            final int lastCol = (int) ((x + radius) / cellWidth);
+            final int firstRow = (int) Math.floor((y - radius) / cellHeight);
+            final int lastRow = (int) ((y + radius) / cellHeight);
+            for (int col = firstCol; col <= lastCol; ++col) {
+                final int c = col < 0 ? col + nCols : col >= nCols ? col - nCols : col;
+                for (int row = firstRow; row <= lastRow; ++row) {
+                    final int r = row < 0 ? row + nRows : row >= nRows ? row - nRows : row;
+                    final int cell = cells.getCell(c, r);
+                    for (int pos = cellStart[cell], end = cellStart[cell + 1]; pos < end; ++pos) {
+                        int j = cellIndex[pos];
+                        if (j == i) continue;
+                        double dX = xs[j] - x, dY = ys[j] - y;
+                        if (dX > halfWidth) dX -= width;
+                        else if (dX < -halfWidth) dX += width;
+                        if (dY > halfHeight) dY -= height;
+                        else if (dY < -halfHeight) dY += height;
+                        if (dX * dX + dY * dY < radiusSquared) {
+                            if (size == buffer.length) buffer = Arrays.copyOf(buffer, 2 * size);
+                            buffer[size++] = j;
+                        }
+                    }
+                }
+            }
+            // offsets are within the range until joined
+            start[i + 1] = size;
+            builtX[i] = x;
+            builtY[i] = y;
+        }
+        buffers[range] = buffer;
+        rangeEnds[range] = last;
+    }
+
+    /**
+     * joins the neighbours collected by each range into one list, the serial part of a build, and marks the list as
+     * usable
+     */
+    void join() {
+        int total = 0;
+        for (int range = 0, first = 0; range < rangeEnds.length; first = rangeEnds[range++]) {
+            total += rangeEnds[range] == first ? 0 : start[rangeEnds[range]];
+        }
+        if (neighbours.length < total) neighbours = new int[total + (total >> 3)];
+
+        int offset = 0;
+        start[0] = 0;
+        for (int range = 0, first = 0; range < rangeEnds.length; first = rangeEnds[range++]) {
+            final int last = rangeEnds[range];
+            if (last == first) continue;
+            final int size = start[last];
+            System.arraycopy(buffers[range], 0, neighbours, offset, size);
+            for (int i = first + 1; i <= last; ++i) {
+                start[i] += offset;
+            }
+            offset += size;
+        }
+        valid = true;
+    }
+
+    /**
+     * adds the deltas due to collisions of a range of particles with their neighbours
+     *
+     * @param particles the particles to calculate collisions between, in the same order as when the list was built
+     * @param k         the interaction strength
+     * @param deltaX    the x deltas for each particle
+     * @param deltaY    the y deltas for each particle
+     * @param first     the first particle to apply
+     * @param last      the particle to stop before
+     * @return the number of neighbours found in contact
+     */
+    long apply(ParticleStore particles, double k, double[] deltaX, double[] deltaY, int first, int last) {
+        final double[] xs = particles.x, ys = particles.y;
+        final int[] start = this.start, neighbours = this.neighbours;
+        final double width = this.width, height = this.height, halfWidth = 0.5 * width, halfHeight = 0.5 * height;
+        long interactions = 0;
+        for (int i = first; i < last; ++i) {
+            final double x = xs[i], y = ys[i];
+            double forceX = 0, forceY = 0;
+            for (int pos = start[i], end = start[i + 1]; pos < end; ++pos) {
+                int j = neighbours[pos];
+                double dX = xs[j] - x, dY = ys[j] - y;
+                if (dX > halfWidth) dX -= width;
+                else if (dX < -halfWidth) dX += width;
+                if (dY > halfHeight) dY -= height;
+                else if (dY < -halfHeight) dY += height;
+                double r = dX * dX + dY * dY;
+
+                // same interaction as the cell list loop, only applied to this particle
+                if (r < 1 && r != 0) {
+                    r = Math.sqrt(r);
+                    double f = -k * (1 - r) / r;
+                    forceX += f * dX;
+                    forceY += f * dY;
+                    ++interactions;
+                }
+            }
+            deltaX[i] += forceX;
+            deltaY[i] += forceY;
+        }
+        return interactions;
+    }
+
+    /**
+     * @return the number of entries in the list, twice the number of pairs
+     */
+    long size() {
+        return start[start.length - 1];
+    }
+}
@@ -0,0 +1,19 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Supplies the random noise applied to particles each step. Every value is a pure function of the step, the particle
+ * and the component, so the noise does not depend on the order particles are visited in or the number of threads
+ * used.
+ */
+public interface NoiseSource {
+
+    /**
+     * gets a normally distributed value with mean 0 and standard deviation 1
+     *
+     * @param step      the integration step the noise is for
+     * @param id        the id of the particle the noise is applied to
+     * @param component which of the particle's noise terms is wanted
+     * @return the noise value, always the same for the same arguments
+     */
+    double gaussian(long step, int id, int component);
+}
@@ -0,0 +1,148 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.stream.IntStream;
+
+/**
+ * Holds the state of every particle in a simulation as contiguous primitive arrays (structure of arrays) rather than
+ * one small array per particle. Stores are allocated once and reused between integration steps.
+ * <p>
+ * Particles may be reordered between steps to keep neighbours close in memory, so each keeps an id recording its
+ * original index.
+ */
+public class ParticleStore {
+    // the size of the arrays holding each particle
+    static final int BYTES_PER_PARTICLE = 3 * Double.BYTES + Integer.BYTES;
+
+    private int size;
+    final double[] x, y, theta;
+    final int[] id;
+
+    /**
+     * creates a new store with space for a fixed number of particles
+     *
+     * @param size the number of particles
+     */
+    public ParticleStore(int size) {
+        this.size = size;
+        this.x = new double[size];
+        this.y = new double[size];
+        this.theta = new double[size];
+        this.id = new int[size];
+        for (int i = 0; i < size; ++i) {
+            id[i] = i;
+        }
+    }
+
+    /**
+     * @return the number of particles held
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the most particles the store has space for
+     */
+    int capacity() {
+        return x.length;
+    }
+
+    /**
+     * changes the number of particles held, for stores whose particles come and go, such as those of a
+     * {@link SlabWorker}. Must not be used on a store shared with other threads
+     *
+     * @param size the number of particles, at most the capacity
+     */
+    void setSize(int size) {
+        if (size < 0 || size > x.length) throw new IllegalArgumentException("size must be within the capacity");
+        this.size = size;
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    public double getTheta(int i) {
+        return theta[i];
+    }
+
+    /**
+     * @param i the current index of the particle
+     * @return the index the particle was created with
+     */
+    public int getId(int i) {
+        return id[i];
+    }
+
+    /**
+     * sets the state of a single particle
+     *
+     * @param i     the index of the particle
+     * @param x     the x coordinate
+     * @param y     the y coordinate
+     * @param theta the heading
+     * @param id    the index the particle was created with
+     */
+    public void set(int i, double x, double y, double theta, int id) {
+        this.x[i] = x;
+        this.y[i] = y;
+        this.theta[i] = theta;
+        this.id[i] = id;
+    }
+
+    /**
+     * @param capacity the space for particles of the new store, at least the number held
+     * @return a copy of this store with a different capacity
+     */
+    ParticleStore withCapacity(int capacity) {
+        ParticleStore copy = new ParticleStore(capacity);
+        System.arraycopy(x, 0, copy.x, 0, size);
+        System.arraycopy(y, 0, copy.y, 0, size);
+        System.arraycopy(theta, 0, copy.theta, 0, size);
+        System.arraycopy(id, 0, copy.id, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * copies the contents of another store of the same size into this one
+     *
+     * @param other the store to copy from
+     */
+    public void copyFrom(ParticleStore other) {
+        System.arraycopy(other.x, 0, this.x, 0, size);
+        System.arraycopy(other.y, 0, this.y, 0, size);
+        System.arraycopy(other.theta, 0, this.theta, 0, size);
+        System.arraycopy(other.id, 0, this.id, 0, size);
+    }
+
+    /**
+     * fills this store with the particles of another store in a new order
+     *
+     * @param other    the store to copy from
+     * @param order    the index in the other store of each particle in this one
+     * @param parallel whether to copy using multiple threads
+     */
+    void gather(ParticleStore other, int[] order, boolean parallel) {
+        if (parallel) {
+            IntStream.range(0, size)
+                     .parallel()
+                     .forEach(i -> this.gather(other, order[i], i));
+        } else {
+            for (int i = 0; i < size; ++i) {
+                this.gather(other, order[i], i);
+            }
+        }
+    }
+
+    private void gather(ParticleStore other, int from, int to) {
+        x[to] = other.x[from];
+        y[to] = other.y[from];
+        theta[to] = other.theta[from];
+        id[to] = other.id[from];
+    }
+}
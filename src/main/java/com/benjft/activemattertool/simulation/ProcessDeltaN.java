@@ -1,38 +1,114 @@
 package com.benjft.activemattertool.simulation;
 
-import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.ReadOnlyDoubleProperty;
-import javafx.beans.property.SimpleDoubleProperty;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
-public class ProcessDeltaN implements StateProcessor<Double> {
-    private final Simulation sim;
-    private final Random random;
+public class ProcessDeltaN extends DeltaNProcessor<Double> {
+    // the fewest and most monte-carlo samples taken in one frame
+    static final int MIN_SAMPLES = 32, MAX_SAMPLES = 1 << 16;
+    // monte-carlo samples are taken in this many chunks, each with its own random stream and moments, which are then
+    // merged in order. The chunks don't depend on the number of threads, so neither do the results
+    static final int CHUNKS = 8;
+    // the samples each chunk takes between checks of whether the estimate has converged. Parallel rounds are larger,
+    // so each chunk is worth handing to another thread
+    private static final int SAMPLES_PER_ROUND = MIN_SAMPLES / CHUNKS, PARALLEL_SAMPLES_PER_ROUND = 128;
+    // windows expected to hold at least this many particles are slow enough to sample the chunks in parallel
+    private static final double PARALLEL_NL = 256;
+
+    private final SplittableRandom[] streams = new SplittableRandom[CHUNKS];
+    private final Moments[] chunkMoments = new Moments[CHUNKS];
+    private final long seed;
     private final double Nl;
-    private boolean active = true;
-    private DoubleProperty mean, value;
-    private Future<DoublePair> futureValue;
+    private final Estimator estimator;
+    // only used by the box counting estimator
+    private final BoxCounter boxCounter;
+    // the monte-carlo samples of the frame being worked on, and those of earlier frames which only decide when to stop
+    // sampling, both only touched by the thread working on a frame
+    private final Moments frameMoments = new Moments(), moments = new Moments();
+    private volatile double tolerance = 0.03, memory = 0.5;
+    // sampling only stops on convergence unless a time cap is set, so results depend on the seed alone
+    private volatile long timeBudget = 0;
 
     /**
-     * create a new processor that tracks the Delta N vs N of a simulation with a given target average Nl
+     * create a new processor that tracks the Delta N vs N of a simulation with a given target average Nl, sampling
+     * with the monte-carlo estimator
      *
      * @param sim  the sim to track
      * @param Nl   the target average
      * @param seed the seed for monte-carlo methods
      */
     public ProcessDeltaN(Simulation sim, double Nl, long seed) {
-        this.sim = sim;
-        this.random = new Random(seed);
+        this(sim, Nl, seed, Estimator.MONTE_CARLO);
+    }
+
+    /**
+     * create a new processor that tracks the Delta N vs N of a simulation with a given target average Nl
+     *
+     * @param sim       the sim to track
+     * @param Nl        the target average
+     * @param seed      the seed for monte-carlo methods
+     * @param estimator how the Delta N is estimated
+     */
+    public ProcessDeltaN(Simulation sim, double Nl, long seed, Estimator estimator) {
+        this(sim, Nl, seed, estimator, true);
+    }
+
+    private ProcessDeltaN(Simulation sim, double Nl, long seed, Estimator estimator, boolean follow) {
+        super(sim, new double[]{Nl});
+        this.seed = seed;
+        for (int chunk = 0; chunk < CHUNKS; ++chunk) {
+            chunkMoments[chunk] = new Moments();
+        }
+        this.seedStreams();
         this.Nl = Nl;
-        // setup initial values
-        DoublePair pair = this.getUpdatedValue(sim.getParticles(), sim.getGrid());
-        mean = new SimpleDoubleProperty(pair.a);
-        value = new SimpleDoubleProperty(pair.b);
-        // register to be auto-updated
-        sim.registerStateProcessor(this);
+        this.estimator = estimator;
+        this.boxCounter = estimator == Estimator.BOX_COUNT ? new BoxCounter(sim.getWidth(), sim.getHeight(),
+                this.getWindowSize() / BINS_PER_WINDOW) : null;
+        if (follow) this.start();
+    }
+
+    /**
+     * create a new processor that doesn't follow the simulation, for working on frames passed to
+     * {@link #process(Frame)} such as when replaying a trajectory. It never looks at the simulation's own frames, so
+     * its values are NaN until a frame is processed
+     *
+     * @param sim       the sim the frames belong to
+     * @param Nl        the target average
+     * @param seed      the seed for monte-carlo methods
+     * @param estimator how the Delta N is estimated
+     * @return the new processor
+     */
+    public static ProcessDeltaN newDetached(Simulation sim, double Nl, long seed, Estimator estimator) {
+        return new ProcessDeltaN(sim, Nl, seed, estimator, false);
+    }
+
+    /**
+     * starts the random stream of every chunk again from the seed
+     */
+    private void seedStreams() {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int chunk = 0; chunk < CHUNKS; ++chunk) {
+            streams[chunk] = random.split();
+        }
+    }
+
+    /**
+     * forgets the monte-carlo samples of earlier frames and starts the random streams again from the seed
+     */
+    @Override
+    public void reset() {
+        moments.clear();
+        this.seedStreams();
+    }
+
+    @Override
+    DoublePair[] getUpdatedValues(ParticleStore state, CellList grid) {
+        return new DoublePair[]{this.getUpdatedValue(state, grid)};
     }
 
     /**
@@ -42,41 +118,111 @@ public class ProcessDeltaN implements StateProcessor<Double> {
      * @param grid  the resolved grid storing the particles
      * @return a pair containing the average in the area, and the standard deviation from this average
      */
-    private DoublePair getUpdatedValue(double[][] state, int[][][] grid) {
+    DoublePair getUpdatedValue(ParticleStore state, CellList grid) {
+        if (estimator == Estimator.BOX_COUNT) {
+            boxCounter.build(state);
+            return boxCounter.getStats(this.getWindowSize(), boxCounter.getStride(MAX_WINDOWS));
+        }
 
-        double newM = 0, oldM = 0, newS = 0, oldS = 0, newVar = 0, oldVar = 0;
-        int count = 0;
-        final int minCount = 500;
+        final double len = this.getWindowSize();
+        final Moments frameMoments = this.frameMoments, moments = this.moments;
+        final long deadline = System.nanoTime() + timeBudget;
+
+        // earlier frames are kept but fade, so samples are only taken where the estimate is still noisy. They only
+        // decide when to stop, the result is the frame's own samples so frames stay independent in time averages
+        frameMoments.clear();
+        moments.scale(memory);
 
-        final double len = Math.sqrt(Math.PI * 0.25 * Nl / sim.getPackingFraction());
+        // use monte-carlo method to sample at random points in the simulation space
+        // takes rounds of samples till result converges, or the time for this frame runs out
+        final boolean parallel = Nl >= PARALLEL_NL;
+        final int samples = parallel ? PARALLEL_SAMPLES_PER_ROUND : SAMPLES_PER_ROUND;
+        for (int count = 0; count < MAX_SAMPLES; count += CHUNKS * samples) {
+            if (parallel) {
+                this.sampleParallel(samples, len, state, grid);
+            } else for (int chunk = 0; chunk < CHUNKS; ++chunk) {
+                this.sample(chunk, samples, len, state, grid);
+            }
+            // the chunks are merged in the same order however they were run
+            for (Moments chunk : chunkMoments) {
+                frameMoments.merge(chunk);
+                moments.merge(chunk);
+            }
+
+            if (moments.getRelativeErrorOfDeviation() < tolerance) break;
+            if (timeBudget > 0 && System.nanoTime() > deadline) break;
+        }
+
+        return new DoublePair(frameMoments.getMean(), Math.sqrt(frameMoments.getVariance()));
+    }
 
-        // use monte-carlo method to sample at set number of random points in the simulation space
-        // takes samples till result converges
-        while (++count <= minCount) {
+    /**
+     * takes one round of samples for every chunk on the simulation's analysis executor, so the sampling shares the
+     * threads of an {@link Ensemble}. Chunks no worker has started yet are run on the calling thread, which itself may
+     * be one of the workers, so a round never waits on a busy pool
+     *
+     * @param samples the samples each chunk takes
+     * @param len     the side of the window
+     */
+    private void sampleParallel(int samples, double len, ParticleStore state, CellList grid) {
+        final ExecutorService executor = sim.getAnalysisExecutor();
+        final FutureTask<?>[] tasks = new FutureTask<?>[CHUNKS];
+        for (int chunk = 1; chunk < CHUNKS; ++chunk) {
+            final int index = chunk;
+            tasks[chunk] = new FutureTask<>(() -> this.sample(index, samples, len, state, grid), null);
+            try {
+                executor.execute(tasks[chunk]);
+            } catch (RejectedExecutionException e) {
+                // the calling thread runs it below instead
+            }
+        }
+        this.sample(0, samples, len, state, grid);
+        // running a task that has already started does nothing
+        for (int chunk = 1; chunk < CHUNKS; ++chunk) {
+            tasks[chunk].run();
+        }
+        try {
+            for (int chunk = 1; chunk < CHUNKS; ++chunk) {
+                tasks[chunk].get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new RuntimeException("interrupted while sampling", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * takes one round of samples into the moments of a chunk, from the chunk's own random stream
+     *
+     * @param chunk   the index of the chunk
+     * @param samples the samples to take
+     * @param len     the side of the window
+     */
+    private void sample(int chunk, int samples, double len, ParticleStore state, CellList grid) {
+        final SplittableRandom random = streams[chunk];
+        final Moments moments = chunkMoments[chunk];
+        moments.clear();
+        for (int i = 0; i < samples; ++i) {
             // generate random centre to sample near
             double cx = random.nextDouble() * sim.getWidth();
             double cy = random.nextDouble() * sim.getHeight();
 
-            // the number within len of the center point
-            double n = this.getNNear(cx, cy, len, state, grid);
-
-            // advance running mean and variance (Uses the Welford method)
-            if (count <= 1) {
-                newM = n;
-            } else {
-                oldM = newM;
-                oldS = newS;
-                oldVar = newVar;
-                newM = oldM + (n - oldM) / count;
-                newS = oldS + (n - oldM) * (n - newM);
-                newVar = newS / (count - 1);
-            }
+            // the number within len of the center point, advancing the running moments (Uses the Welford method)
+            moments.add(this.getNNear(cx, cy, len, state, grid));
         }
+    }
 
-        return new DoublePair(newM, Math.sqrt(newVar));
+    /**
+     * @return the side of the square window expected to hold Nl particles on average
+     */
+    private double getWindowSize() {
+        return this.getWindowSize(0);
     }
 
-    private int getNNear(double cx, double cy, double len, double[][] state, int[][][] grid) {
+    private int getNNear(double cx, double cy, double len, ParticleStore state, CellList grid) {
         int count = 0;
 
         len /= 2;
@@ -111,12 +257,11 @@ public class ProcessDeltaN implements StateProcessor<Double> {
                 }
 
                 // iterate over particles in loaded cell and add to count if near enough
-                int[] cell = grid[col][row];
-                for (int idx : cell) {
-                    double[] particle = state[idx];
-
-                    double dx = particle[0] + shiftX - cx;
-                    double dy = particle[1] + shiftY - cy;
+                int cell = grid.getCell(col, row);
+                for (int pos = grid.getCellStart(cell); pos < grid.getCellEnd(cell); ++pos) {
+                    int idx = grid.getParticle(pos);
+                    double dx = state.getX(idx) + shiftX - cx;
+                    double dy = state.getY(idx) + shiftY - cy;
 
 //                    double r = Math.sqrt(dx * dx + dy * dy);
                     if (Math.abs(dx) < len && Math.abs(dy) < len) ++count;
@@ -127,78 +272,111 @@ public class ProcessDeltaN implements StateProcessor<Double> {
     }
 
     @Override
+    Double getResult(DoublePair[] pairs) {
+        return pairs[0].b;
+    }
+
+    public ReadOnlyDoubleProperty getValueProperty() {
+        return this.getValueProperty(0);
+    }
+
+    public double getMean() {
+        return this.getMean(0);
+    }
+
+    public ReadOnlyDoubleProperty getMeanProperty() {
+        return this.getMeanProperty(0);
+    }
+
     /**
-     * advances the internal state and starts working on the future states based on the futures passed
-     */
-    public void advance(Future<double[][]> state, Future<int[][][]> futureGrid) {
-        // block until current future state is recovered
-        if (this.isActive()) {
-            if (futureValue != null) try {
-                DoublePair pair = futureValue.get();
-                mean.set(pair.a);
-                value.set(pair.b);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
-                e.getCause()
-                 .printStackTrace();
-                System.exit(1);
-            }
+     * @return the Delta N of every frame worked on, averaged over time
+     */
+    public TimeAverage getTimeAverage() {
+        return this.getTimeAverage(0);
+    }
 
-            // start new future state
-            futureValue = StateProcessor.executorPool.submit(() -> {
-                try {
-                    return this.getUpdatedValue(state.get(), futureGrid.get());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
-                    e.getCause()
-                     .printStackTrace();
-                    System.exit(1);
-                }
-                return new DoublePair(0, 0);
-            });
-        }
+    /**
+     * @return the Delta N averaged over time
+     */
+    public double getAverage() {
+        return this.getAverage(0);
     }
 
-    @Override
-    public boolean isActive() {
-        return this.active;
+    /**
+     * @return the standard error of the Delta N averaged over time
+     */
+    public double getAverageError() {
+        return this.getAverageError(0);
     }
 
-    @Override
-    public void setActive(boolean active) {
-        this.active = active;
+    public ReadOnlyDoubleProperty getAverageProperty() {
+        return this.getAverageProperty(0);
     }
 
-    @Override
-    public Double getValue() {
-        return this.value.get();
+    public ReadOnlyDoubleProperty getAverageErrorProperty() {
+        return this.getAverageErrorProperty(0);
     }
 
-    public ReadOnlyDoubleProperty getValueProperty() {
-        return this.value;
+    public Estimator getEstimator() {
+        return estimator;
     }
 
-    public double getMean() {
-        return mean.get();
+    public double getTolerance() {
+        return tolerance;
     }
 
-    public ReadOnlyDoubleProperty getMeanProperty() {
-        return mean;
+    /**
+     * sets when monte-carlo sampling of a frame stops
+     *
+     * @param tolerance the standard error of Delta N, relative to its value, to stop sampling at
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public long getTimeBudget() {
+        return timeBudget;
     }
 
     /**
-     * Internal helper class for returning a pair of doubles
+     * sets the longest monte-carlo sampling of a frame may take, after which the estimate is used however noisy. Off by
+     * default, as results then depend on the speed and load of the machine rather than only the seed
+     *
+     * @param timeBudget the time in nanoseconds, or 0 for no limit
      */
-    private class DoublePair {
-        final double a, b;
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = timeBudget;
+    }
 
-        DoublePair(double a, double b) {
-            this.a = a;
-            this.b = b;
-        }
+    public double getMemory() {
+        return memory;
+    }
+
+    /**
+     * sets how much the samples of earlier frames count towards deciding when a new frame has been sampled enough. The
+     * result of a frame is always from its own samples alone
+     *
+     * @param memory the weight kept by samples each frame, from 0 to forget every earlier frame to just below 1 to
+     *               carry them over many frames
+     */
+    public void setMemory(double memory) {
+        if (memory < 0 || memory >= 1) throw new IllegalArgumentException("memory must be in [0, 1)");
+        this.memory = memory;
+    }
+
+    /**
+     * The ways Delta N can be estimated from a frame
+     */
+    public enum Estimator {
+        /**
+         * counts the particles in a fixed number of randomly placed windows, checking each particle in the cells a
+         * window touches, so the cost grows with Nl
+         */
+        MONTE_CARLO,
+        /**
+         * bins the particles into a summed-area table and counts every window aligned to the bins in constant time per
+         * window, so the cost doesn't depend on Nl. Window sides are rounded to a whole number of bins
+         */
+        BOX_COUNT
     }
 }
@@ -0,0 +1,69 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Tracks the Delta N vs N of a simulation for several target averages at once. Each frame the particles are binned
+ * into one summed-area table, which every window size is then counted from, so the frame is only read once however
+ * many averages are tracked.
+ */
+public class ProcessMultiScaleDeltaN extends DeltaNProcessor<double[]> {
+    private final BoxCounter boxCounter;
+
+    /**
+     * create a new processor that tracks the Delta N vs N of a simulation for several target averages
+     *
+     * @param sim the sim to track
+     * @param Nls the target averages
+     */
+    public ProcessMultiScaleDeltaN(Simulation sim, double[] Nls) {
+        this(sim, Nls, true);
+    }
+
+    private ProcessMultiScaleDeltaN(Simulation sim, double[] Nls, boolean follow) {
+        super(sim, Nls);
+
+        // the bins are sized for the smallest window, larger windows are then rounded more finely
+        double minLen = Double.MAX_VALUE;
+        for (int j = 0; j < Nls.length; ++j) {
+            minLen = Math.min(minLen, this.getWindowSize(j));
+        }
+        this.boxCounter = new BoxCounter(sim.getWidth(), sim.getHeight(), minLen / BINS_PER_WINDOW);
+
+        if (follow) this.start();
+    }
+
+    /**
+     * create a new processor that doesn't follow the simulation, for working on frames passed to
+     * {@link #process(Frame)} such as when replaying a trajectory. It never looks at the simulation's own frames, so
+     * its values are NaN until a frame is processed
+     *
+     * @param sim the sim the frames belong to
+     * @param Nls the target averages
+     * @return the new processor
+     */
+    public static ProcessMultiScaleDeltaN newDetached(Simulation sim, double[] Nls) {
+        return new ProcessMultiScaleDeltaN(sim, Nls, false);
+    }
+
+    @Override
+    DoublePair[] getUpdatedValues(ParticleStore state, CellList grid) {
+        boxCounter.build(state);
+        DoublePair[] pairs = new DoublePair[this.getNScales()];
+        final int stride = boxCounter.getStride(MAX_WINDOWS);
+        for (int j = 0; j < pairs.length; ++j) {
+            pairs[j] = boxCounter.getStats(this.getWindowSize(j), stride);
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the Delta N for each target average
+     */
+    @Override
+    double[] getResult(DoublePair[] pairs) {
+        double[] values = new double[pairs.length];
+        for (int j = 0; j < pairs.length; ++j) {
+            values[j] = pairs[j].b;
+        }
+        return values;
+    }
+}
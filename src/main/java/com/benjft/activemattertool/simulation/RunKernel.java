@@ -0,0 +1,62 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Finds the collisions between one particle and a contiguous run of particles, for cell lists whose particles have
+ * been reordered into cell order so that each cell is a run of consecutive indices. Implementations must give exactly
+ * the same deltas as {@link ForceKernel}'s scalar loop, summing the pairs of each particle in the order of the run.
+ * <p>
+ * {@link #newVector()} creates a SIMD implementation using the Vector API, which is compiled separately for newer
+ * JDKs and only loads when the JVM is started with --add-modules jdk.incubator.vector. It doesn't speed up real
+ * frames, where most runs are shorter than a vector, so it is only used when turned on with
+ * -Dactivemattertool.vector=true. Otherwise the scalar loop is used.
+ */
+interface RunKernel {
+
+    /**
+     * applies the deltas due to collisions between a particle and the particles from and up to a position
+     *
+     * @param xs     the x positions of the particles
+     * @param ys     the y positions of the particles
+     * @param deltaX the x deltas for each particle
+     * @param deltaY the y deltas for each particle
+     * @param idx1   the index of the particle, which must not be in the run
+     * @param from   the index of the first particle of the run
+     * @param to     the index to stop before
+     * @param shiftX correction for periodic bounds
+     * @param shiftY correction for periodic bounds
+     * @param k      the interaction strength
+     * @return the number of particles in contact with the passed particle
+     */
+    int apply(double[] xs, double[] ys, double[] deltaX, double[] deltaY, int idx1, int from, int to, double shiftX,
+              double shiftY, double k);
+
+    /**
+     * @return the shortest run worth passing to the kernel, shorter runs are left to the scalar loop
+     */
+    int getMinimumRun();
+
+    /**
+     * creates a vector kernel, which holds scratch space so must only be used by one thread at a time
+     *
+     * @return the kernel, or null if it isn't turned on or available on this JVM
+     */
+    static RunKernel newVector() {
+        return load("com.benjft.activemattertool.simulation.VectorRunKernel");
+    }
+
+    /**
+     * @param className the implementation to load
+     * @return an instance of the implementation, or null if it isn't turned on or available on this JVM
+     */
+    static RunKernel load(String className) {
+        if (!Boolean.getBoolean("activemattertool.vector")) return null;
+        try {
+            return (RunKernel) Class.forName(className)
+                                    .getDeclaredConstructor()
+                                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not built, or the incubator module wasn't added to the JVM
+            return null;
+        }
+    }
+}
@@ -1,29 +1,68 @@
 package com.benjft.activemattertool.simulation;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class Simulation implements AutoCloseable {
+    // systems at least this large spread the cell list rebuild over multiple threads
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    // frames needed besides one for each processor: the latest, the one being written and two for other readers
+    private static final int MIN_FRAMES = 4;
 
-public class Simulation {
     private final double width, height, speed, k, dPos, dAng, dTime;
     private final int nParticles;
+    private final long seed;
 
     private final int nCols, nRows;
     private final double cellWidth, cellHeight;
-
-    private double[][] particles;
+    // whether cell lists are built and particles reordered on multiple threads
+    private final boolean parallel;
+    // space for building cell lists, shared by every list built on the stepping thread
+    private final CellList.Scratch gridScratch;
+
+    // completed states are held in a ring of frames, each step writes into a frame no one is reading. A spare store
+    // is used as scratch space when reordering particles into cell order
+    private final FrameRing frames;
+    // the most frames the ring may grow to, whatever the number of processors
+    private volatile int maxFrames = Integer.MAX_VALUE;
+    private ParticleStore sortScratch;
+    private final Integrator integrator;
+    private final ForceKernel forceKernel;
+    private int nThreads = 1;
     private final ExecutorService integrationExecutor = Executors.newSingleThreadExecutor();
-    private final Random random;
-    private final List<StateProcessor<?>> stateProcessors = new ArrayList<>();
-    private int[][][] grid;
-    private Future<int[][][]> futureGrid;
+    private volatile ExecutorService analysisExecutor = StateProcessor.executorPool;
+    private NoiseSource noise;
+    // the number of integration steps taken
+    private volatile long step = 0;
+    private final List<StateProcessor<?>> stateProcessors = new CopyOnWriteArrayList<>();
+    // the loop started by start, if any. Guarded by its own lock, as stopping waits on a step which locks this
+    private final Object runLock = new Object();
+    private volatile boolean running = false;
+    private Future<?> runLoop;
+    private final SimulationMetrics metrics = new SimulationMetrics();
+
+    private Simulation(double width, double height, double speed, double k, double dPos, double dAng,
+                       double dTime, int nParticles, long seed, Integrator integrator) {
+        this(width, height, speed, k, dPos, dAng, dTime, nParticles, seed, integrator, null, 0);
+    }
 
+    /**
+     * @param initial the particles to start from, or null to scatter them randomly
+     * @param step    the number of steps already taken to reach the initial particles
+     */
     private Simulation(double width, double height, double speed, double k, double dPos, double dAng,
-                       double dTime, int nParticles, long seed) {
+                       double dTime, int nParticles, long seed, Integrator integrator, ParticleStore initial,
+                       long step) {
         this.width = width;
         this.height = height;
         this.speed = speed;
@@ -32,48 +71,61 @@ public class Simulation {
         this.dAng = dAng;
         this.dTime = dTime;
         this.nParticles = nParticles;
+        this.seed = seed;
 
         this.nCols = (int) this.width;
         this.nRows = (int) this.height;
         this.cellWidth = this.width / nCols;
         this.cellHeight = this.height / nRows;
-
-        this.random = new Random(seed);
-
-        // initialise with a randomised scattering of particles
-        this.particles = new double[nParticles][3];
-        for (double[] particle : this.particles) {
-            particle[0] = random.nextDouble() * this.width;
-            particle[1] = random.nextDouble() * this.height;
-            particle[2] = random.nextDouble() * Math.PI * 2;
+        // splitting the builds up only costs time without threads to spread them over
+        this.parallel = nParticles >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1;
+        this.gridScratch = new CellList.Scratch(nParticles);
+
+        this.noise = new CounterNoise(seed);
+        this.forceKernel = new ForceKernel(width, height, k, nCols, nRows);
+
+        this.sortScratch = new ParticleStore(nParticles);
+        this.integrator = integrator;
+
+        ParticleStore particles = initial;
+        if (particles == null) {
+            // initialise with a randomised scattering of particles
+            Random random = new Random(seed);
+            particles = new ParticleStore(nParticles);
+            for (int i = 0; i < nParticles; ++i) {
+                particles.x[i] = random.nextDouble() * this.width;
+                particles.y[i] = random.nextDouble() * this.height;
+                particles.theta[i] = random.nextDouble() * Math.PI * 2;
+            }
         }
-        // load the initial grid
-        this.grid = this.formToGrid(particles);
+        // load the initial grid. A restored store is already in cell order and the sort is stable, so it is unchanged
+        CellList grid = this.newCellList();
+        Frame first = new Frame(this.formToGrid(particles, grid), grid);
+        first.step = step;
+        this.step = step;
+        this.frames = new FrameRing(first);
     }
 
     /**
-     * created a grid containing the indices of particles in each grid cell
+     * fills a cell list with the indices of particles in each grid cell, then reorders the particles so that those in
+     * the same cell sit next to each other in memory. While a neighbour list still covers the particles they are left
+     * in place, as reordering them means rebuilding the list
      *
-     * @param particles the particle array to be formed into the grid
-     * @return the grd of indices
-     */
-    private int[][][] formToGrid(double[][] particles) {
-
-        int[][][] grid = new int[nCols][nRows][0];
-        for (int i = 0; i < particles.length; ++i) {
-            double[] particle = particles[i];
-            int col = (int) (particle[0] / cellWidth);
-            int row = (int) (particle[1] / cellHeight);
-
-            // copy, update, and replace the current contents of the cell
-            int[] cell = grid[col][row];
-            int[] updatedCell = new int[cell.length + 1];
-            System.arraycopy(cell, 0, updatedCell, 0, cell.length);
-            updatedCell[cell.length] = i;
-            grid[col][row] = updatedCell;
-        }
+     * @param particles the particle store to be formed into the grid
+     * @param grid      the cell list to fill
+     * @return the reordered particle store
+     */
+    ParticleStore formToGrid(ParticleStore particles, CellList grid) {
+        grid.build(particles, cellWidth, cellHeight, parallel);
+        if (forceKernel.isNeighbourListCurrent(particles)) return particles;
 
-        return grid;
+        ParticleStore sorted = this.sortScratch;
+        sorted.gather(particles, grid.cellIndex, parallel);
+        grid.setSorted();
+        this.sortScratch = particles;
+        forceKernel.invalidateNeighbourList();
+
+        return sorted;
     }
 
     /**
@@ -92,16 +144,101 @@ public class Simulation {
      */
     public static Simulation newInstance(double width, double height, double speed, double k, double dPos, double dAng,
                                          double dTime, double packingFraction, long seed) {
+        return newInstance(width, height, speed, k, dPos, dAng, dTime, packingFraction, seed, new EulerIntegrator());
+    }
+
+    /**
+     * Creates a new simulation instance with the specified properties and integration scheme
+     *
+     * @param width           the width of the simulation in particle diameters
+     * @param height          the height of the simulation in particle diameters
+     * @param speed           the self propulsion speed of the particles in diameters per unit time
+     * @param k               the strength of the inter-particle interactions
+     * @param dPos            the noise in the particles positions in diameters per unit time
+     * @param dAng            the noise in particle heading in radians per unit time
+     * @param dTime           the timestep for integrating
+     * @param packingFraction the target packing fraction (will be as close to this as possible)
+     * @param seed            seed number for the random number generator
+     * @param integrator      the integration scheme, must not be shared with another simulation
+     * @return the new simulation instance
+     */
+    public static Simulation newInstance(double width, double height, double speed, double k, double dPos, double dAng,
+                                         double dTime, double packingFraction, long seed, Integrator integrator) {
         int nParticles = (int) Math.round(width * height * packingFraction / (Math.PI * 0.25));
 
-        return new Simulation(width, height, speed, k, dPos, dAng, dTime, nParticles, seed);
+        return new Simulation(width, height, speed, k, dPos, dAng, dTime, nParticles, seed, integrator);
     }
 
     public static Simulation newInstance(double packingFraction, int Nt, double speed, double k, double dPos,
                                          double dAng, double dTime, long seed) {
+        return newInstance(packingFraction, Nt, speed, k, dPos, dAng, dTime, seed, new EulerIntegrator());
+    }
+
+    public static Simulation newInstance(double packingFraction, int Nt, double speed, double k, double dPos,
+                                         double dAng, double dTime, long seed, Integrator integrator) {
         double width = Math.sqrt(Nt * Math.PI * 0.25 / packingFraction);
 
-        return new Simulation(width, width, speed, k, dPos, dAng, dTime, Nt, seed);
+        return new Simulation(width, width, speed, k, dPos, dAng, dTime, Nt, seed, integrator);
+    }
+
+    /**
+     * @return the seed the starting state and default noise source were made from
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * resumes a simulation from a checkpoint. The resumed simulation takes exactly the same steps as the one the
+     * checkpoint was written from, as long as that used its default noise source
+     *
+     * @param path the checkpoint file
+     * @return the resumed simulation
+     * @throws IOException if the checkpoint can't be read or is corrupt
+     */
+    public static Simulation fromCheckpoint(Path path) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(path);
+        return fromCheckpoint(checkpoint, checkpoint.seed);
+    }
+
+    /**
+     * starts a new run from the state in a checkpoint with different noise, for forking many runs from one
+     * equilibrated state
+     *
+     * @param path the checkpoint file
+     * @param seed the seed of the noise for the new run
+     * @return the new simulation, which carries on the step count of the checkpoint
+     * @throws IOException if the checkpoint can't be read or is corrupt
+     */
+    public static Simulation fromCheckpoint(Path path, long seed) throws IOException {
+        return fromCheckpoint(Checkpoint.read(path), seed);
+    }
+
+    /**
+     * creates a simulation starting from a given state, such as one loaded from a recording
+     *
+     * @param width     the width of the simulation in particle diameters
+     * @param height    the height of the simulation in particle diameters
+     * @param speed     the self propulsion speed of the particles in diameters per unit time
+     * @param k         the strength of the inter-particle interactions
+     * @param dPos      the noise in the particles positions in diameters per unit time
+     * @param dAng      the noise in particle heading in radians per unit time
+     * @param dTime     the timestep for integrating
+     * @param seed      seed number for the noise
+     * @param particles the particles to start from, which the simulation takes over
+     * @param step      the number of steps already taken to reach the particles
+     * @return the new simulation instance
+     */
+    public static Simulation fromState(double width, double height, double speed, double k, double dPos, double dAng,
+                                       double dTime, long seed, ParticleStore particles, long step) {
+        return new Simulation(width, height, speed, k, dPos, dAng, dTime, particles.size(), seed,
+                new EulerIntegrator(), particles, step);
+    }
+
+    private static Simulation fromCheckpoint(Checkpoint checkpoint, long seed) {
+        return new Simulation(checkpoint.width, checkpoint.height, checkpoint.speed, checkpoint.k, checkpoint.dPos,
+                checkpoint.dAng, checkpoint.dTime, checkpoint.particles.size(), seed, checkpoint.getIntegrator(),
+                checkpoint.particles, checkpoint.step);
     }
 
     public double getWidth() {
@@ -109,129 +246,176 @@ public class Simulation {
     }
 
     /**
-     * Performs a single Euler integration step with length dTime
+     * Performs a single integration step with length dTime using the simulation's integrator.
      *
-     * @return the state after the integration step
+     * @param from  the particles at the start of the step
+     * @param cells the cell list of the particles
+     * @param to    the store to write the state after the integration step into
      */
-    private double[][] integrate() {
-        double[][] deltas = this.getDeltas();
-        double[][] updatedParticles = new double[this.particles.length][3];
-
-        for (int i = 0; i < this.particles.length; ++i) {
-            updatedParticles[i][0] = this.particles[i][0] + deltas[i][0] * this.dTime;
-            updatedParticles[i][1] = this.particles[i][1] + deltas[i][1] * this.dTime;
-            updatedParticles[i][2] = this.particles[i][2] + deltas[i][2] * this.dTime;
+    void integrate(ParticleStore from, CellList cells, ParticleStore to) {
+        integrator.integrate(this, from, cells, to);
+    }
 
-            // ensure wrapped to simulation width and height
-            if (updatedParticles[i][0] < 0) updatedParticles[i][0] += this.width;
-            else if (updatedParticles[i][0] >= this.width) updatedParticles[i][0] -= this.width;
+    /**
+     * takes a single step on the calling thread, from the latest frame into a free one, then publishes it and hands it
+     * to the state processors. Steps are only ever taken one at a time.
+     *
+     * @return the new frame
+     */
+    public synchronized Frame step() {
+        // the clock is only read when metrics are enabled, checked once so a step is either fully timed or not at all
+        final boolean timed = metrics.isEnabled();
+        final long start = timed ? System.nanoTime() : 0;
+        final long allocated = timed ? SimulationMetrics.getThreadAllocatedBytes() : 0;
+
+        Frame source = frames.getLatest();
+        Frame target = frames.claim(this.getFrameLimit(), () -> new Frame(new ParticleStore(nParticles),
+                this.newCellList()));
+        final long claimed = timed ? System.nanoTime() : 0;
+
+        this.integrate(source.particles, source.grid, target.particles);
+        final long integrated = timed ? System.nanoTime() : 0;
+        target.particles = this.formToGrid(target.particles, target.grid);
+        final long sorted = timed ? System.nanoTime() : 0;
+        target.step = ++this.step;
+        target.published = sorted;
+        frames.publish(target);
+
+        // processors must not block, so stepping only waits on observers that pin every frame of the ring
+        for (StateProcessor<?> stateProcessor : stateProcessors) {
+            stateProcessor.advance(target);
+        }
 
-            if (updatedParticles[i][1] < 0) updatedParticles[i][1] += this.height;
-            else if (updatedParticles[i][1] >= this.height) updatedParticles[i][1] -= this.height;
+        if (timed) {
+            final long end = System.nanoTime();
+            metrics.record(SimulationMetrics.Phase.CLAIM, claimed - start);
+            metrics.record(SimulationMetrics.Phase.INTEGRATE, integrated - claimed);
+            metrics.record(SimulationMetrics.Phase.GRID, sorted - integrated);
+            metrics.record(SimulationMetrics.Phase.PROCESSORS, end - sorted);
+            metrics.record(SimulationMetrics.Phase.STEP, end - start);
+            metrics.recordStep(allocated < 0 ? -1 : SimulationMetrics.getThreadAllocatedBytes() - allocated);
         }
+        return target;
+    }
 
-        return updatedParticles;
+    /**
+     * creates a frame that isn't part of the simulation's ring, for holding states from elsewhere. See
+     * {@link #loadFrame(Frame, ParticleStore, long)}
+     *
+     * @return the new frame, holding no particular state
+     */
+    public Frame newFrame() {
+        return new Frame(new ParticleStore(nParticles), new CellList(nCols, nRows, nParticles));
     }
 
     /**
-     * Calculates the shift in values between frames (before multiplication with timestep)
+     * creates a cell list for the simulation's grid that builds in the simulation's shared space, so must only be
+     * built on the stepping thread
      *
-     * @return the amount each value will shift by on a per particle level.
-     */
-    private double[][] getDeltas() {
-        // makes a grid where each cell contains the indices of the particles within it
-        final int[][][] cells = this.grid;
-        // stores the delta information for each particle
-        final double[][] deltas = new double[this.particles.length][3];
-
-        // iterates through the columns of the grid
-        for (int col = 0; col < cells.length; ++col) {
-            // indices of adjacent columns (and corrections for if they're off the side)
-            int colLeft = col - 1;
-            double dLeft = 0;
-            int colRight = col + 1;
-            double dRight = 0;
-            if (colLeft < 0) {
-                colLeft = cells.length - 1;
-                dLeft = -this.width;
-            } else if (colRight >= cells.length) {
-                colRight = 0;
-                dRight = this.width;
-            }
+     * @return the new cell list
+     */
+    CellList newCellList() {
+        return new CellList(nCols, nRows, nParticles, gridScratch);
+    }
 
-            // local references for column and adjacent columns
-            int[][] column = cells[col];
-            int[][] columnLeft = cells[colLeft];
-            int[][] columnRight = cells[colRight];
-
-            // iterates through the cell of the column
-            for (int row = 0; row < column.length; ++row) {
-                int[] cell = column[row];
-                // if the cell is empty nothing needs to be done so continue from the next cell
-                if (cell.length == 0) continue;
-
-                // find the index of the row directly above. (accounts for wrapping)
-                int rowUp = row - 1;
-                double dUp = 0;
-                if (rowUp < 0) {
-                    rowUp = column.length - 1;
-                    dUp = -this.height;
-                }
+    /**
+     * fills a frame from {@link #newFrame()} with a state, sorting the particles into the frame's cell list. Only reads
+     * the simulation's parameters, so frames can be loaded on many threads at once.
+     *
+     * @param frame     the frame to fill
+     * @param particles the state to copy in, which is left unchanged
+     * @param step      the step the state was taken at
+     */
+    public void loadFrame(Frame frame, ParticleStore particles, long step) {
+        frame.grid.build(particles, cellWidth, cellHeight, false);
+        frame.particles.gather(particles, frame.grid.cellIndex, false);
+        frame.grid.setSorted();
+        frame.step = step;
+    }
 
-                // checks collisions for each particle in the cell with particles in some adjacent cells
-                for (int idx : cell) {
-                    double[] particle = this.particles[idx];
-
-                    // adds deltas due to collisions
-                    this.calculateDeltas(idx, particle, cell, 0, 0, deltas);
-                    this.calculateDeltas(idx, particle, columnLeft[row], dLeft, 0, deltas);
-                    this.calculateDeltas(idx, particle, columnLeft[rowUp], dLeft, dUp, deltas);
-                    this.calculateDeltas(idx, particle, column[rowUp], 0, dUp, deltas);
-                    this.calculateDeltas(idx, particle, columnRight[rowUp], dRight, dUp, deltas);
-
-                    // adds deltas due to movement and noise
-                    deltas[idx][0] += this.speed * Math.sin(particle[2]) + dPos * random.nextGaussian();
-                    deltas[idx][1] += this.speed * Math.cos(particle[2]) + dPos * random.nextGaussian();
-                    deltas[idx][2] += this.dAng * random.nextGaussian();
-                }
-            }
+    /**
+     * Calculates the rate of change of each particle (the shift in values before multiplication with a timestep).
+     * Noise is drawn for the current step, so calling this again with the same substep gives the same noise.
+     *
+     * @param state      the particles to calculate the deltas of
+     * @param cells      the cell list of the particles
+     * @param substep    which substep of the current step the noise is for
+     * @param noiseScale multiplier for the noise terms
+     * @param deltaX     the array to fill with x deltas
+     * @param deltaY     the array to fill with y deltas
+     * @param deltaTheta the array to fill with heading deltas
+     */
+    void getDeltas(ParticleStore state, CellList cells, int substep, double noiseScale, double[] deltaX,
+                   double[] deltaY, double[] deltaTheta) {
+        final boolean timed = metrics.isEnabled();
+        final long start = timed ? System.nanoTime() : 0;
+
+        // clear the delta information for each particle
+        Arrays.fill(deltaX, 0);
+        Arrays.fill(deltaY, 0);
+        Arrays.fill(deltaTheta, 0);
+
+        // adds deltas due to collisions
+        forceKernel.apply(state, cells, deltaX, deltaY, timed);
+
+        // adds deltas due to movement and noise, each particle draws its noise from its own stream
+        final NoiseSource noise = this.noise;
+        final long step = this.step;
+        final double dPos = this.dPos * noiseScale, dAng = this.dAng * noiseScale;
+        final int component = 3 * substep;
+        forceKernel.forEachParticle(state.size(), idx -> {
+            double theta = state.theta[idx];
+            int id = state.id[idx];
+            deltaX[idx] += this.speed * Math.sin(theta) + dPos * noise.gaussian(step, id, component);
+            deltaY[idx] += this.speed * Math.cos(theta) + dPos * noise.gaussian(step, id, component + 1);
+            deltaTheta[idx] += dAng * noise.gaussian(step, id, component + 2);
+        });
+
+        if (timed) {
+            metrics.record(SimulationMetrics.Phase.DELTAS, System.nanoTime() - start);
+            metrics.recordPairs(forceKernel.getPairTests(), forceKernel.getInteractions());
+            if (forceKernel.wasNeighbourListRebuilt()) metrics.recordNeighbourListBuild();
         }
-        return deltas;
     }
 
     /**
-     * applies the delta due to collisions between the passed particle and the particles in the passed cell
+     * moves each particle by its deltas multiplied by a time interval, wrapping to the simulation bounds
      *
-     * @param idx1      the index of the particle
-     * @param particle1 the values of the particle
-     * @param cell2     the cell to check collisions with
-     * @param shiftX    correction for periodic bounds
-     * @param shiftY    correction for periodic bounds
-     * @param deltas    the deltas array
-     */
-    private void calculateDeltas(int idx1, double[] particle1, int[] cell2, double shiftX, double shiftY,
-                                 double[][] deltas) {
-        // itterate over each particle in cell2
-        for (int idx2 : cell2) {
-            double[] particle2 = this.particles[idx2];
-
-            // distance from particle 1
-            double dX = shiftX + particle2[0] - particle1[0];
-            double dY = shiftY + particle2[1] - particle1[1];
-            double r = dX * dX + dY * dY;
-
-            // if r squared < (2*particle_radius) squared calculate interaction.
-            if (r < 1 && r != 0) {
-                r = Math.sqrt(r);
-                // interaction magnitude
-                double f = -k * (1 - r) / r;
-                // components resolved onto each particle
-                deltas[idx1][0] += f * dX;
-                deltas[idx1][1] += f * dY;
-                deltas[idx2][0] -= f * dX;
-                deltas[idx2][1] -= f * dY;
-            }
-        }
+     * @param from       the particles at the start of the interval
+     * @param to         the store to write the moved particles into
+     * @param interval   the length of the time interval
+     * @param deltaX     the x deltas of the particles
+     * @param deltaY     the y deltas of the particles
+     * @param deltaTheta the heading deltas of the particles
+     */
+    void applyDeltas(ParticleStore from, ParticleStore to, double interval, double[] deltaX, double[] deltaY,
+                     double[] deltaTheta) {
+        forceKernel.forEachParticle(from.size(), i -> {
+            double x = from.x[i] + deltaX[i] * interval;
+            double y = from.y[i] + deltaY[i] * interval;
+            to.theta[i] = from.theta[i] + deltaTheta[i] * interval;
+
+            // ensure wrapped to simulation width and height
+            if (x < 0) x += this.width;
+            else if (x >= this.width) x -= this.width;
+
+            if (y < 0) y += this.height;
+            else if (y >= this.height) y -= this.height;
+
+            to.x[i] = x;
+            to.y[i] = y;
+            to.id[i] = from.id[i];
+        });
+    }
+
+    /**
+     * fills a cell list for an intermediate state, without reordering the particles
+     *
+     * @param state the particles to place into cells
+     * @param cells the cell list to fill
+     */
+    void formCells(ParticleStore state, CellList cells) {
+        cells.build(state, cellWidth, cellHeight, parallel);
     }
 
     public int getNCols() {
@@ -262,20 +446,172 @@ public class Simulation {
         return dTime;
     }
 
+    /**
+     * @return the number of threads used to calculate collisions
+     */
+    public int getThreads() {
+        return nThreads;
+    }
+
+    /**
+     * sets the number of threads used to calculate collisions. The grid is split into strips independently of the
+     * thread count, so results do not depend on it.
+     *
+     * @param nThreads the number of threads to use
+     */
+    public synchronized void setThreads(int nThreads) {
+        if (nThreads < 1) throw new IllegalArgumentException("nThreads must be at least 1");
+        // synchronised with step, so this waits for any step in progress before swapping the worker pool
+        forceKernel.setThreads(nThreads);
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * @return the skin of the neighbour list collisions are found from, or 0 if they are found from the cell list
+     */
+    public double getNeighbourSkin() {
+        NeighbourList neighbourList = forceKernel.getNeighbourList();
+        return neighbourList == null ? 0 : neighbourList.getSkin();
+    }
+
+    /**
+     * finds collisions from a Verlet neighbour list, holding every particle within one diameter plus the skin of each
+     * particle. The list is rebuilt once any particle has moved half the skin, and the particles are only reordered
+     * into cell order when it is, so a larger skin means rarer rebuilds but longer lists. Results don't depend on the
+     * thread count, but do differ from the cell list's by rounding, and restarts from checkpoints taken with the list
+     * on match closely rather than exactly.
+     *
+     * @param skin the distance beyond contact to list neighbours from, or 0 to find collisions from the cell list
+     */
+    public synchronized void setNeighbourSkin(double skin) {
+        // synchronised with step, so this waits for any step in progress before swapping
+        forceKernel.setNeighbourList(skin > 0 ? new NeighbourList(this, skin) : null);
+    }
+
+    /**
+     * @return the most frames the simulation may hold, or {@link Integer#MAX_VALUE} if only limited by the number of
+     * processors
+     */
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * limits the number of frames the simulation holds, which otherwise grows by one for each processor so that
+     * processors never hold up stepping. For the largest systems the frames take up most of the memory, so limiting
+     * them bounds memory use, at the cost of stepping waiting on readers when every frame is pinned. Frames already
+     * created are kept.
+     *
+     * @param maxFrames the most frames to hold, at least two: the latest and the one being written
+     */
+    public void setMaxFrames(int maxFrames) {
+        if (maxFrames < 2) throw new IllegalArgumentException("maxFrames must be at least 2");
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * @return the most frames the ring may currently grow to
+     */
+    private int getFrameLimit() {
+        return Math.min(maxFrames, MIN_FRAMES + stateProcessors.size());
+    }
+
+    /**
+     * estimates the most memory the simulation's particle data can take up: its frames once the ring has grown as far
+     * as it may, the integrator's scratch space and the neighbour list. Nothing else grows with the number of
+     * particles, so this bounds the memory used by the simulation, but not by its processors.
+     *
+     * @return the size in bytes
+     */
+    public long getMemoryEstimate() {
+        final long n = nParticles, nCells = (long) nCols * nRows;
+        final long frame = ParticleStore.BYTES_PER_PARTICLE * n + CellList.estimateBytes(n, nCells);
+        // the spare store particles are reordered into, and the space cell lists are built in
+        long bytes = this.getFrameLimit() * frame + ParticleStore.BYTES_PER_PARTICLE * n
+                + CellList.Scratch.estimateBytes(n, parallel);
+        bytes += integrator.estimateScratchBytes(n, nCells);
+        final double skin = this.getNeighbourSkin();
+        if (skin > 0) bytes += NeighbourList.estimateBytes(n, n / (width * height), skin);
+        return bytes;
+    }
+
+    public Integrator getIntegrator() {
+        return integrator;
+    }
+
+    public NoiseSource getNoiseSource() {
+        return noise;
+    }
+
+    /**
+     * replaces the source of the noise applied to the particles each step
+     *
+     * @param noise the new noise source
+     */
+    public synchronized void setNoiseSource(NoiseSource noise) {
+        // synchronised with step, so this waits for any step in progress before swapping
+        this.noise = noise;
+    }
+
+    /**
+     * @return the executor state processors should run their work on
+     */
+    public ExecutorService getAnalysisExecutor() {
+        return analysisExecutor;
+    }
+
+    /**
+     * sets the executor state processors run their work on, by default the shared {@link
+     * StateProcessor#executorPool}
+     *
+     * @param analysisExecutor the executor to use
+     */
+    public void setAnalysisExecutor(ExecutorService analysisExecutor) {
+        this.analysisExecutor = analysisExecutor;
+    }
+
+    /**
+     * @return the performance measurements of the simulation, which are off until enabled
+     */
+    public SimulationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of integration steps that have been taken
+     */
+    public long getStep() {
+        return step;
+    }
+
     public int getNParticles() {
         return nParticles;
     }
 
-    public double[][] getParticles() {
-        return particles;
+    /**
+     * gets the particles of the latest frame without pinning it. The store may be reused once further steps are taken,
+     * use {@link #acquireLatestFrame()} to read a state that is kept stable.
+     *
+     * @return the store holding the current state of the particles
+     */
+    public ParticleStore getParticles() {
+        return frames.getLatest().particles;
+    }
+
+    /**
+     * gets the most recently completed frame without blocking. The frame is pinned and won't be reused until it is
+     * released (or closed).
+     *
+     * @return the latest frame
+     */
+    public Frame acquireLatestFrame() {
+        return frames.acquireLatest();
     }
 
     public int getNRows() {
         return nRows;
     }
 
-    private Future<double[][]> futureParticles;
-
     public double getCellWidth() {
         return cellWidth;
     }
@@ -284,8 +620,13 @@ public class Simulation {
         return cellHeight;
     }
 
-    public int[][][] getGrid() {
-        return this.grid;
+    /**
+     * gets the cell list of the latest frame without pinning it, see {@link #getParticles()}
+     *
+     * @return the current cell list
+     */
+    public CellList getGrid() {
+        return frames.getLatest().grid;
     }
 
     public void registerStateProcessor(StateProcessor<?> stateProcessor) {
@@ -293,46 +634,75 @@ public class Simulation {
     }
 
     /**
-     * finds the state after a single integration step and sets it internally. Starts the calculation for the next step
-     * in advance (to be recovered when this is next called.
+     * queues a single integration step on the simulation's own thread
      *
-     * @return the new state of the system
-     */
-    public double[][] advanceAndGetParticles() {
-        // try to acquire futures that should have been running in the background
-        // blocks till they have finished
-        if (futureParticles != null) try {
-            this.particles = futureParticles.get();
-            this.grid = futureGrid.get();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-            e.getCause()
-             .printStackTrace();
-            System.exit(1);
+     * @return the frame produced by the step, it is not pinned
+     */
+    public Future<Frame> advance() {
+        return integrationExecutor.submit(this::step);
+    }
+
+    /**
+     * starts stepping continuously on the simulation's own thread, until stopped. Observers read the latest frame
+     * whenever they like rather than driving the steps, so neither holds the other back.
+     */
+    public void start() {
+        synchronized (runLock) {
+            if (running) return;
+            running = true;
+            runLoop = integrationExecutor.submit(() -> {
+                while (running) {
+                    this.step();
+                }
+            });
         }
-        // start new futures to be ready when this method is next called
-        futureParticles = integrationExecutor.submit(this::integrate);
-        futureGrid = integrationExecutor.submit(() -> {
+    }
+
+    /**
+     * stops stepping continuously, waiting for the step in progress to finish
+     */
+    public void stop() {
+        synchronized (runLock) {
+            if (!running) return;
+            running = false;
             try {
-                // futureGrid relies on futureParticles
-                return this.formToGrid(futureParticles.get());
+                runLoop.get();
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                Thread.currentThread()
+                      .interrupt();
             } catch (ExecutionException e) {
                 e.printStackTrace();
                 e.getCause()
                  .printStackTrace();
-                System.exit(1);
             }
-            return null;
-        });
-        // advance stateProcessors with new futures (blocks till they are done with the old ones)
-        for (StateProcessor<?> stateProcessor : stateProcessors) {
-            stateProcessor.advance(futureParticles, futureGrid);
         }
-        return this.particles;
+    }
+
+    /**
+     * @return true if the simulation is stepping continuously
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * stops the simulation's threads, once any queued steps have finished. Processors are not shut down, as their
+     * executor may be shared. If interrupted while waiting, queued steps are cancelled and the interrupt is kept.
+     */
+    @Override
+    public void close() {
+        this.stop();
+        integrationExecutor.shutdown();
+        try {
+            // queued steps still use the collision threads, so they must finish before those are stopped
+            integrationExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            integrationExecutor.shutdownNow();
+            Thread.currentThread()
+                  .interrupt();
+        }
+        forceKernel.close();
+        metrics.close();
     }
 
     /**
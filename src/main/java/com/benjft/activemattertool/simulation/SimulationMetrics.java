@@ -0,0 +1,356 @@
+package com.benjft.activemattertool.simulation;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live performance measurements of a simulation and its processors: how long each phase of a step takes, the steps
+ * taken per second, how many particle pairs are checked and found in contact each step, how much the stepping thread
+ * allocates each step and how long frames wait before processors start on them.
+ * <p>
+ * Metrics are off by default, when the only cost to a step is reading a volatile flag. Once enabled they can be read
+ * through JMX after {@link #register(String)}, or printed every so often with {@link #startLogging}. Allocation is
+ * measured on the stepping thread only, so excludes anything allocated by the collision worker threads.
+ */
+public class SimulationMetrics implements SimulationMetricsMXBean {
+    private static final String DOMAIN = "com.benjft.activemattertool";
+    // shared by the log lines of every simulation, daemon so it never keeps the JVM alive
+    private static final ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "simulation-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The parts a step is timed in. DELTAS is spent within INTEGRATE, and STEP covers the whole step.
+     */
+    public enum Phase {
+        // waiting for a frame to write into
+        CLAIM,
+        INTEGRATE,
+        // calculating collisions and noise, once per substep of the integrator
+        DELTAS,
+        // sorting the particles into the cell list
+        GRID,
+        // handing the frame to the state processors
+        PROCESSORS,
+        STEP
+    }
+
+    private volatile boolean enabled = false;
+    private final TimingHistogram[] phases = new TimingHistogram[Phase.values().length];
+    private final TimingHistogram processorLag = new TimingHistogram();
+    private final AtomicLong steps = new AtomicLong(), allocated = new AtomicLong();
+    private final LongAdder pairTests = new LongAdder(), interactions = new LongAdder(), skipped = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private volatile long since = System.nanoTime();
+    private ObjectName name;
+    private ScheduledFuture<?> logging;
+
+    SimulationMetrics() {
+        for (int p = 0; p < phases.length; ++p) {
+            phases[p] = new TimingHistogram();
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * turns recording on or off, everything recorded before is cleared when turning it on
+     *
+     * @param enabled true to record
+     */
+    @Override
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) this.reset();
+        this.enabled = enabled;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (TimingHistogram phase : phases) {
+            phase.clear();
+        }
+        processorLag.clear();
+        steps.set(0);
+        allocated.set(0);
+        pairTests.reset();
+        interactions.reset();
+        skipped.reset();
+        rebuilds.reset();
+        since = System.nanoTime();
+    }
+
+    /**
+     * @param phase the phase timed
+     * @param nanos the time spent in it
+     */
+    void record(Phase phase, long nanos) {
+        phases[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * counts a completed step
+     *
+     * @param allocatedBytes the bytes allocated by the stepping thread during the step, or negative if unknown
+     */
+    void recordStep(long allocatedBytes) {
+        steps.incrementAndGet();
+        if (allocatedBytes > 0) allocated.addAndGet(allocatedBytes);
+    }
+
+    /**
+     * @param tests        the number of particle pairs checked for contact
+     * @param interactions the number of pairs found in contact
+     */
+    void recordPairs(long tests, long interactions) {
+        pairTests.add(tests);
+        this.interactions.add(interactions);
+    }
+
+    /**
+     * counts a rebuild of the simulation's neighbour list
+     */
+    void recordNeighbourListBuild() {
+        rebuilds.increment();
+    }
+
+    /**
+     * records how long a frame waited before a processor started work on it. Processors that hand frames to other
+     * threads should call this as that work starts.
+     *
+     * @param frame the frame being worked on
+     */
+    public void recordProcessorStart(Frame frame) {
+        if (enabled && frame.published != 0) processorLag.record(System.nanoTime() - frame.published);
+    }
+
+    /**
+     * counts a frame a processor skipped as it was busy
+     */
+    public void recordSkippedFrame() {
+        if (enabled) skipped.increment();
+    }
+
+    /**
+     * @return the bytes allocated so far by the calling thread, or -1 if the JVM can't measure it
+     */
+    static long getThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread()
+                                                                                        .getId());
+    }
+
+    /**
+     * registers the metrics with the platform MBean server, so they can be read by JMX tools
+     *
+     * @param name the name to show the simulation by, unique among registered simulations
+     */
+    public synchronized void register(String name) {
+        try {
+            this.name = new ObjectName(DOMAIN + ":type=Simulation,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(this, this.name);
+        } catch (JMException e) {
+            e.printStackTrace();
+            this.name = null;
+        }
+    }
+
+    /**
+     * prints a line summarising the metrics since the last line at a fixed rate, until stopped. Does not enable the
+     * metrics.
+     *
+     * @param label  the label to start each line with
+     * @param period the time between lines
+     * @param unit   the unit of the period
+     * @param out    the stream to print to
+     */
+    public synchronized void startLogging(String label, long period, TimeUnit unit, PrintStream out) {
+        this.stopLogging();
+        logging = logger.scheduleAtFixedRate(new LogLine(label, out), period, period, unit);
+    }
+
+    public synchronized void stopLogging() {
+        if (logging != null) logging.cancel(false);
+        logging = null;
+    }
+
+    /**
+     * stops logging and unregisters the metrics from JMX
+     */
+    synchronized void close() {
+        this.stopLogging();
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                             .unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    @Override
+    public long getSteps() {
+        return steps.get();
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        return steps.get() * 1e9 / Math.max(1, System.nanoTime() - since);
+    }
+
+    @Override
+    public double getPairTestsPerStep() {
+        return perStep(pairTests.sum());
+    }
+
+    @Override
+    public double getInteractionsPerStep() {
+        return perStep(interactions.sum());
+    }
+
+    @Override
+    public double getAllocatedBytesPerStep() {
+        if (getThreadAllocatedBytes() < 0) return -1;
+        return perStep(allocated.get());
+    }
+
+    private double perStep(long total) {
+        long steps = this.steps.get();
+        return steps == 0 ? 0 : (double) total / steps;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            means.put(phase.name(), phases[phase.ordinal()].getMean() * 1e-3);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getP99Micros() {
+        Map<String, Double> quantiles = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            quantiles.put(phase.name(), phases[phase.ordinal()].getQuantile(0.99) * 1e-3);
+        }
+        return quantiles;
+    }
+
+    /**
+     * @param phase the phase of a step
+     * @return the mean time of the phase in nanoseconds
+     */
+    public double getMeanNanos(Phase phase) {
+        return phases[phase.ordinal()].getMean();
+    }
+
+    @Override
+    public long getNeighbourListBuilds() {
+        return rebuilds.sum();
+    }
+
+    @Override
+    public double getProcessorLagMeanMicros() {
+        return processorLag.getMean() * 1e-3;
+    }
+
+    @Override
+    public double getProcessorLagP99Micros() {
+        return processorLag.getQuantile(0.99) * 1e-3;
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        return skipped.sum();
+    }
+
+    /**
+     * Prints the rates and means over the time since the last line, found from the change in the running totals.
+     */
+    private class LogLine implements Runnable {
+        private final String label;
+        private final PrintStream out;
+        private final long[] phaseCounts = new long[Phase.values().length], phaseTotals = new long[phaseCounts.length];
+        private long time = System.nanoTime(), steps, allocated, pairTests, interactions, lagCount, lagTotal, skipped;
+        private long rebuilds;
+
+        LogLine(String label, PrintStream out) {
+            this.label = label;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            if (!enabled) return;
+            long time = System.nanoTime();
+            long steps = SimulationMetrics.this.steps.get();
+            long allocated = SimulationMetrics.this.allocated.get();
+            long pairTests = SimulationMetrics.this.pairTests.sum();
+            long interactions = SimulationMetrics.this.interactions.sum();
+            long lagCount = processorLag.getCount(), lagTotal = processorLag.getTotal();
+            long skipped = SimulationMetrics.this.skipped.sum();
+            long rebuilds = SimulationMetrics.this.rebuilds.sum();
+            // a reset since the last line makes the totals go backwards, so start again from zero
+            if (steps < this.steps) {
+                this.steps = this.allocated = this.pairTests = this.interactions = 0;
+                this.lagCount = this.lagTotal = this.skipped = this.rebuilds = 0;
+                Arrays.fill(phaseCounts, 0);
+                Arrays.fill(phaseTotals, 0);
+            }
+
+            long dSteps = steps - this.steps;
+            StringBuilder line = new StringBuilder();
+            line.append(String.format(Locale.ROOT, "%s: %.1f steps/s", label, dSteps * 1e9 / (time - this.time)));
+            for (Phase phase : Phase.values()) {
+                TimingHistogram histogram = phases[phase.ordinal()];
+                long count = histogram.getCount(), total = histogram.getTotal();
+                long dCount = count - phaseCounts[phase.ordinal()], dTotal = total - phaseTotals[phase.ordinal()];
+                line.append(String.format(Locale.ROOT, ", %s %.3f ms", phase.name()
+                                                                           .toLowerCase(Locale.ROOT),
+                        dCount == 0 ? 0 : dTotal * 1e-6 / dCount));
+                phaseCounts[phase.ordinal()] = count;
+                phaseTotals[phase.ordinal()] = total;
+            }
+            double per = Math.max(1, dSteps);
+            line.append(String.format(Locale.ROOT,
+                    ", %.0f tests/step, %.0f contacts/step, %d rebuilds, %.0f bytes/step",
+                    (pairTests - this.pairTests) / per, (interactions - this.interactions) / per,
+                    rebuilds - this.rebuilds, (allocated - this.allocated) / per));
+            long dLag = lagCount - this.lagCount;
+            line.append(String.format(Locale.ROOT, ", lag %.3f ms, %d skipped",
+                    dLag == 0 ? 0 : (lagTotal - this.lagTotal) * 1e-6 / dLag, skipped - this.skipped));
+            out.println(line);
+
+            this.time = time;
+            this.steps = steps;
+            this.allocated = allocated;
+            this.pairTests = pairTests;
+            this.interactions = interactions;
+            this.lagCount = lagCount;
+            this.lagTotal = lagTotal;
+            this.skipped = skipped;
+            this.rebuilds = rebuilds;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link SimulationMetrics}, as seen through JMX by tools such as JConsole. Rates and
+ * means are taken over everything recorded since the metrics were enabled or last reset.
+ */
+public interface SimulationMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * clears everything recorded so far
+     */
+    void reset();
+
+    /**
+     * @return the number of steps recorded
+     */
+    long getSteps();
+
+    double getStepsPerSecond();
+
+    /**
+     * @return the mean number of distance checks made for contacts each step
+     */
+    double getPairTestsPerStep();
+
+    /**
+     * @return the mean number of particle pairs found in contact each step
+     */
+    double getInteractionsPerStep();
+
+    /**
+     * @return the number of times the neighbour list was rebuilt, if the simulation uses one
+     */
+    long getNeighbourListBuilds();
+
+    /**
+     * @return the mean number of bytes allocated by the stepping thread each step, or -1 if the JVM can't measure it
+     */
+    double getAllocatedBytesPerStep();
+
+    /**
+     * @return the mean time of each phase of a step in microseconds, by the name of the phase
+     */
+    Map<String, Double> getMeanMicros();
+
+    /**
+     * @return an upper bound of the 99th percentile time of each phase of a step in microseconds, by the name of the
+     * phase
+     */
+    Map<String, Double> getP99Micros();
+
+    /**
+     * @return the mean time from a frame being published to a processor starting work on it, in microseconds
+     */
+    double getProcessorLagMeanMicros();
+
+    double getProcessorLagP99Micros();
+
+    /**
+     * @return the number of frames processors skipped as they were still busy with an earlier frame
+     */
+    long getSkippedFrames();
+}
@@ -0,0 +1,307 @@
+package com.benjft.activemattertool.simulation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the particles in square windows for one slab of a simulation split up by a {@link SlabCoordinator}, using the
+ * same bins, windows and stride as a {@link BoxCounter} over the whole space would.
+ * <p>
+ * The window positions are shared out between the slabs by column of bins, each slab taking those starting a little
+ * to the right of its left edge, so no particle of a slab further left can fall in its windows. A window reaches to the
+ * right of the slab, so the counts of the bins there are passed leftwards around the ring of slabs, one slab further
+ * each pass, cut down to the columns still wanted by the slabs they have left to reach. Only the mean and spread of
+ * each slab's windows then need to leave the worker.
+ */
+class SlabBoxCounter {
+    private final int nBinsX, nBinsY, nSlabs, rank, stride;
+    private final double binWidth, binHeight;
+    private final int[] sidesX, sidesY;
+    // the first window column of each slab, and of the slab after the last counted on past the last column
+    private final int[] starts;
+    // the first and last columns of bins each slab's particles can fall in, allowing a column either side for rounding
+    private final int[] lows, highs;
+    // the number of columns of bins each slab's windows reach over from its first window column
+    private final int[] lengths;
+    private final int passes;
+
+    // the bins this slab's windows reach over, from its first window column, and their summed-area table
+    private final int[] bins, table;
+    // the bins of this slab's particles, and the strips read from the right, which take turns being read into
+    private final Strip own, firstRead, secondRead;
+    // the strip to pass on next
+    private Strip held;
+
+    /**
+     * @param width   the width of the simulation space
+     * @param height  the height of the simulation space
+     * @param binSize the largest size of a bin, as given to a {@link BoxCounter}
+     * @param lens    the side of each size of window in the simulation's units
+     * @param nCols   the number of columns in the simulation's grid
+     * @param nSlabs  the number of slabs
+     * @param rank    the index of this slab
+     */
+    SlabBoxCounter(double width, double height, double binSize, double[] lens, int nCols, int nSlabs, int rank) {
+        this.nBinsX = BoxCounter.getNBins(width, binSize);
+        this.nBinsY = BoxCounter.getNBins(height, binSize);
+        this.binWidth = width / nBinsX;
+        this.binHeight = height / nBinsY;
+        this.nSlabs = nSlabs;
+        this.rank = rank;
+        this.stride = BoxCounter.getStride(nBinsX, nBinsY, DeltaNProcessor.MAX_WINDOWS);
+        this.sidesX = new int[lens.length];
+        this.sidesY = new int[lens.length];
+        int maxSide = 1;
+        for (int j = 0; j < lens.length; ++j) {
+            sidesX[j] = BoxCounter.getSide(lens[j], binWidth, nBinsX);
+            sidesY[j] = BoxCounter.getSide(lens[j], binHeight, nBinsY);
+            maxSide = Math.max(maxSide, sidesX[j]);
+        }
+
+        // particles left of a slab's edge fall in the edge's column of bins at most, or the next one through rounding
+        final double cellWidth = width / nCols;
+        final int[] edges = new int[nSlabs + 1];
+        for (int q = 0; q < nSlabs; ++q) {
+            edges[q] = BoxCounter.getBin(SlabCoordinator.getFirstCol(q, nSlabs, nCols) * cellWidth, binWidth, nBinsX);
+        }
+        edges[nSlabs] = nBinsX - 1;
+        this.starts = new int[nSlabs + 1];
+        this.lows = new int[nSlabs];
+        this.highs = new int[nSlabs];
+        for (int q = 0; q < nSlabs; ++q) {
+            starts[q] = edges[q] + 2;
+            lows[q] = Math.max(0, edges[q] - 1);
+            highs[q] = Math.min(nBinsX - 1, edges[q + 1] + 1);
+        }
+        starts[nSlabs] = starts[0] + nBinsX;
+        this.lengths = new int[nSlabs];
+        for (int q = 0; q < nSlabs; ++q) {
+            lengths[q] = starts[q + 1] > starts[q] ? starts[q + 1] - starts[q] + maxSide - 1 : 0;
+        }
+
+        // every slab passes on the same number of times, enough for the furthest strip any slab wants to reach it
+        int passes = 0;
+        for (int r = 0; r < nSlabs; ++r) {
+            for (int p = 1; p < nSlabs; ++p) {
+                final int q = (r + p) % nSlabs;
+                for (int c = lows[q]; c <= highs[q]; ++c) {
+                    if (this.isWanted(r, c)) {
+                        passes = Math.max(passes, p);
+                        break;
+                    }
+                }
+            }
+        }
+        this.passes = passes;
+
+        this.bins = new int[lengths[rank] * nBinsY];
+        this.table = new int[(lengths[rank] + 1) * (nBinsY + 1)];
+        this.own = new Strip(highs[rank] - lows[rank] + 1);
+        this.firstRead = new Strip(own.bins.length / nBinsY);
+        this.secondRead = new Strip(own.bins.length / nBinsY);
+        this.held = own;
+    }
+
+    /**
+     * @return whether the windows of a slab reach over a column of bins
+     */
+    private boolean isWanted(int slab, int column) {
+        return lengths[slab] >= nBinsX || Math.floorMod(column - starts[slab], nBinsX) < lengths[slab];
+    }
+
+    /**
+     * @return the number of times strips must be passed on after {@link #build} for every slab to have the bins its
+     * windows reach over
+     */
+    int getPasses() {
+        return passes;
+    }
+
+    /**
+     * bins the particles of this slab, forgetting the strips of any earlier frame
+     *
+     * @param owned the particles of the slab
+     */
+    void build(ParticleStore owned) {
+        final int low = lows[rank], high = highs[rank];
+        own.slab = rank;
+        own.first = low;
+        own.columns = high - low + 1;
+        Arrays.fill(own.bins, 0, own.columns * nBinsY, 0);
+        for (int i = 0; i < owned.size(); ++i) {
+            final int bx = BoxCounter.getBin(owned.x[i], binWidth, nBinsX);
+            if (bx < low || bx > high)
+                throw new IllegalStateException("particle " + owned.id[i] + " lies outside the bins of its slab");
+            ++own.bins[(bx - low) * nBinsY + BoxCounter.getBin(owned.y[i], binHeight, nBinsY)];
+        }
+        Arrays.fill(bins, 0);
+        this.add(own);
+        held = own;
+    }
+
+    /**
+     * passes the strip last read, or this slab's own strip on the first pass, to the slab on the left while reading
+     * the strip of the slab one further to the right than the last
+     *
+     * @param pass   the number of the pass, from 1
+     * @param left   the connection to the slab on the left
+     * @param right  the connection from the slab on the right
+     * @param sender the thread to write on, so a full socket buffer can't hold up both sides
+     * @throws IOException if a connection fails
+     */
+    void pass(int pass, DataOutputStream left, DataInputStream right, ExecutorService sender) throws IOException {
+        // the held strip goes on to the slabs from the left neighbour down to the last this pass's strips reach
+        final Strip sent = held;
+        final int reach = passes - pass + 1;
+        Future<Void> written = sender.submit(() -> {
+            this.write(left, sent, reach);
+            return null;
+        });
+        final Strip read = sent == firstRead ? secondRead : firstRead;
+        this.read(right, read);
+        if (read.slab != (rank + pass) % nSlabs) throw new IOException("bins arrived from the wrong slab");
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new IOException("interrupted while sending bins to a neighbour", e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to send bins to a neighbour", e.getCause());
+        }
+        this.add(read);
+        held = read;
+    }
+
+    /**
+     * writes the columns of a strip wanted by any of the next slabs to the left, as the slab the strip is of, its
+     * first column, the number of columns and their bins
+     *
+     * @param reach the number of slabs to the left the strip will yet be passed to
+     */
+    private void write(DataOutputStream out, Strip strip, int reach) throws IOException {
+        int first = strip.first + strip.columns, last = strip.first - 1;
+        for (int c = strip.first; c < strip.first + strip.columns; ++c) {
+            for (int s = 1; s <= reach; ++s) {
+                if (this.isWanted(Math.floorMod(rank - s, nSlabs), c)) {
+                    first = Math.min(first, c);
+                    last = c;
+                    break;
+                }
+            }
+        }
+        final int columns = Math.max(0, last - first + 1);
+        out.writeInt(strip.slab);
+        out.writeInt(first);
+        out.writeInt(columns);
+        final int offset = (first - strip.first) * nBinsY;
+        for (int i = 0; i < columns * nBinsY; ++i) {
+            out.writeInt(strip.bins[offset + i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * reads a strip written by {@link #write}
+     */
+    private void read(DataInputStream in, Strip strip) throws IOException {
+        strip.slab = in.readInt();
+        strip.first = in.readInt();
+        strip.columns = in.readInt();
+        if (strip.columns * nBinsY > strip.bins.length) strip.bins = new int[strip.columns * nBinsY];
+        for (int i = 0; i < strip.columns * nBinsY; ++i) {
+            strip.bins[i] = in.readInt();
+        }
+    }
+
+    /**
+     * adds the columns of a strip that this slab's windows reach over to its bins, more than once if the windows wrap
+     * all the way around the space
+     */
+    private void add(Strip strip) {
+        final int length = lengths[rank];
+        for (int column = 0; column < strip.columns; ++column) {
+            for (int o = Math.floorMod(strip.first + column - starts[rank], nBinsX); o < length; o += nBinsX) {
+                for (int by = 0; by < nBinsY; ++by) {
+                    bins[o * nBinsY + by] += strip.bins[column * nBinsY + by];
+                }
+            }
+        }
+    }
+
+    /**
+     * builds the summed-area table of the bins once every pass is done, then writes for each size of window the number
+     * of windows of this slab, the mean count and the sum of squared deviations from it
+     *
+     * @param out where to write the results
+     * @throws IOException if they can't be written
+     */
+    void writeStats(DataOutputStream out) throws IOException {
+        final int length = lengths[rank], stride = nBinsY + 1;
+        for (int o = 0; o < length; ++o) {
+            int rowSum = 0;
+            for (int by = 0; by < nBinsY; ++by) {
+                rowSum += bins[o * nBinsY + by];
+                table[(o + 1) * stride + by + 1] = table[o * stride + by + 1] + rowSum;
+            }
+        }
+
+        for (int j = 0; j < sidesX.length; ++j) {
+            double mean = 0, s = 0;
+            long count = 0;
+            for (int u = starts[rank]; u < starts[rank + 1]; ++u) {
+                if (u % nBinsX % this.stride != 0) continue;
+                final int o = u - starts[rank];
+                for (int by = 0; by < nBinsY; by += this.stride) {
+                    int n = this.count(o, by, sidesX[j], sidesY[j]);
+                    // advance running mean and variance (Uses the Welford method)
+                    double oldMean = mean;
+                    mean += (n - oldMean) / ++count;
+                    s += (n - oldMean) * (n - mean);
+                }
+            }
+            out.writeLong(count);
+            out.writeDouble(mean);
+            out.writeDouble(s);
+        }
+    }
+
+    /**
+     * counts the particles in a window of bins, wrapping around the periodic boundary in y. Windows never wrap in x,
+     * as the bins already run on past the last column
+     */
+    private int count(int o, int by, int sideX, int sideY) {
+        int endY = by + sideY;
+        int wrapY = endY - nBinsY;
+        if (wrapY > 0) endY = nBinsY;
+
+        int n = this.rectangle(o, by, o + sideX, endY);
+        if (wrapY > 0) n += this.rectangle(o, 0, o + sideX, wrapY);
+        return n;
+    }
+
+    /**
+     * @return the number of particles in the bins from (x0, y0) up to but not including (x1, y1)
+     */
+    private int rectangle(int x0, int y0, int x1, int y1) {
+        final int stride = nBinsY + 1;
+        return table[x1 * stride + y1] - table[x0 * stride + y1] - table[x1 * stride + y0] + table[x0 * stride + y0];
+    }
+
+    /**
+     * The bins of a run of columns binned by one slab.
+     */
+    private class Strip {
+        int slab, first, columns;
+        int[] bins;
+
+        Strip(int columns) {
+            this.bins = new int[columns * nBinsY];
+        }
+    }
+}
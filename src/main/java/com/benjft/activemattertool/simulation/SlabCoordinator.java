@@ -0,0 +1,382 @@
+package com.benjft.activemattertool.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a simulation split across several worker processes, for systems too large for one JVM. The columns of the grid
+ * are divided into slabs, each owned by a {@link SlabWorker} in a JVM of its own, which swap the particles along
+ * their edges with each other every step over loopback TCP connections.
+ * <p>
+ * The coordinator starts the workers and then only tells them how far to run. A new simulation is scattered by the
+ * workers themselves, each keeping the particles of its slab, so the coordinator never holds the particles. Whenever
+ * the workers stop they box count their own slabs as {@link ProcessMultiScaleDeltaN} would the whole space, and send
+ * back only the mean and spread of their windows' counts, which the coordinator combines into the Delta N. The workers
+ * use the default counter based noise and Euler integration, and find the same collisions as a single process, so a
+ * split run follows the single process run up to rounding.
+ */
+public class SlabCoordinator implements AutoCloseable {
+    // commands sent to the workers
+    static final int RUN = 1, CLOSE = 2;
+    // how long to wait for the workers to start and connect
+    private static final int CONNECT_TIMEOUT_MILLIS = 60_000;
+
+    private final double width, height, speed, k, dPos, dAng, dTime, packingFraction;
+    private final long seed;
+    private final int nParticles, nCols, nRows;
+    private final Process[] workers;
+    private final Socket[] sockets;
+    private final DataInputStream[] ins;
+    private final DataOutputStream[] outs;
+    private long step;
+
+    private SlabCoordinator(double width, double height, double speed, double k, double dPos, double dAng,
+                            double dTime, int nParticles, long seed, int nSlabs) {
+        this.width = width;
+        this.height = height;
+        this.speed = speed;
+        this.k = k;
+        this.dPos = dPos;
+        this.dAng = dAng;
+        this.dTime = dTime;
+        this.nParticles = nParticles;
+        this.seed = seed;
+        this.packingFraction = nParticles * Math.PI * 0.25 / (width * height);
+        // the grid a Simulation of the same size uses
+        this.nCols = (int) width;
+        this.nRows = (int) height;
+        if (nSlabs < 1 || nSlabs > nCols)
+            throw new IllegalArgumentException("nSlabs must be between 1 and the number of columns");
+        this.workers = new Process[nSlabs];
+        this.sockets = new Socket[nSlabs];
+        this.ins = new DataInputStream[nSlabs];
+        this.outs = new DataOutputStream[nSlabs];
+    }
+
+    /**
+     * starts worker processes for a new simulation, as {@link Simulation#newInstance(double, int, double, double,
+     * double, double, double, long)} would create it, each scattering the particles of its own slab
+     *
+     * @param packingFraction the fraction of the area covered by particles
+     * @param Nt              the total number of particles
+     * @param speed           the self propulsion speed
+     * @param k               the interaction strength
+     * @param dPos            the noise in position
+     * @param dAng            the noise in heading
+     * @param dTime           the integration time-step
+     * @param seed            the seed of the starting state and the noise
+     * @param nSlabs          the number of slabs and worker processes
+     * @param nThreads        the number of threads each worker uses for collisions
+     * @param jvmOptions      options for the worker JVMs, such as their heap size
+     * @return the coordinator of the started workers
+     * @throws IOException if the workers can't be started or don't connect
+     */
+    public static SlabCoordinator newInstance(double packingFraction, int Nt, double speed, double k, double dPos,
+                                              double dAng, double dTime, long seed, int nSlabs, int nThreads,
+                                              String... jvmOptions) throws IOException {
+        final double width = Math.sqrt(Nt * Math.PI * 0.25 / packingFraction);
+        return start(new SlabCoordinator(width, width, speed, k, dPos, dAng, dTime, Nt, seed, nSlabs), null, 0,
+                nThreads, jvmOptions);
+    }
+
+    /**
+     * starts worker processes for a simulation and hands them its latest state. The simulation itself isn't stepped,
+     * it only provides the parameters and starting state.
+     *
+     * @param sim        the simulation to split, which must use Euler integration and its default noise source
+     * @param nSlabs     the number of slabs and worker processes
+     * @param nThreads   the number of threads each worker uses for collisions
+     * @param jvmOptions options for the worker JVMs, such as their heap size
+     * @return the coordinator of the started workers
+     * @throws IOException if the workers can't be started or don't connect
+     */
+    public static SlabCoordinator newInstance(Simulation sim, int nSlabs, int nThreads, String... jvmOptions)
+            throws IOException {
+        // the workers only take Euler steps with the noise a new simulation of the same seed draws
+        if (sim.getIntegrator()
+               .getClass() != EulerIntegrator.class)
+            throw new IllegalArgumentException("slab workers only integrate with Euler steps");
+        final NoiseSource noise = sim.getNoiseSource();
+        if (!(noise instanceof CounterNoise) || !((CounterNoise) noise).hasSeed(sim.getSeed()))
+            throw new IllegalArgumentException("slab workers only draw the simulation's default noise");
+        SlabCoordinator coordinator = new SlabCoordinator(sim.getWidth(), sim.getHeight(), sim.getSpeed(), sim.getK(),
+                sim.getDPos(), sim.getDAng(), sim.getDTime(), sim.getNParticles(), sim.getSeed(), nSlabs);
+        try (Frame latest = sim.acquireLatestFrame()) {
+            return start(coordinator, latest.getParticles(), latest.getStep(), nThreads, jvmOptions);
+        }
+    }
+
+    /**
+     * starts the workers of a coordinator, closing them again if any fail to start
+     *
+     * @param particles the particles to hand out, or null for the workers to scatter them
+     * @param step      the step the particles were reached at
+     */
+    private static SlabCoordinator start(SlabCoordinator coordinator, ParticleStore particles, long step,
+                                         int nThreads, String[] jvmOptions) throws IOException {
+        try {
+            coordinator.start(particles, step, nThreads, jvmOptions);
+        } catch (IOException | RuntimeException e) {
+            coordinator.close();
+            throw e;
+        }
+        return coordinator;
+    }
+
+    private void start(ParticleStore particles, long step, int nThreads, String[] jvmOptions) throws IOException {
+        final int nSlabs = workers.length;
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final int[] ports = new int[nSlabs];
+        try (ServerSocket server = new ServerSocket(0, nSlabs, loopback)) {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            for (int rank = 0; rank < nSlabs; ++rank) {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+                                 .toString());
+                command.addAll(Arrays.asList(jvmOptions));
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(SlabWorker.class.getName());
+                command.add(String.valueOf(server.getLocalPort()));
+                command.add(String.valueOf(rank));
+                workers[rank] = new ProcessBuilder(command).inheritIO()
+                                                           .start();
+            }
+            // workers connect in any order, each saying which slab it is and where its left neighbour connects
+            for (int i = 0; i < nSlabs; ++i) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                int rank = in.readInt();
+                ports[rank] = in.readInt();
+                sockets[rank] = socket;
+                ins[rank] = in;
+                outs[rank] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            }
+        }
+
+        this.step = step;
+        final double cellWidth = width / nCols;
+        for (int rank = 0; rank < nSlabs; ++rank) {
+            DataOutputStream out = outs[rank];
+            out.writeDouble(width);
+            out.writeDouble(height);
+            out.writeDouble(speed);
+            out.writeDouble(k);
+            out.writeDouble(dPos);
+            out.writeDouble(dAng);
+            out.writeDouble(dTime);
+            out.writeLong(seed);
+            out.writeLong(step);
+            out.writeInt(nCols);
+            out.writeInt(nRows);
+            out.writeInt(nSlabs);
+            out.writeInt(nThreads);
+            out.writeInt(ports[(rank + 1) % nSlabs]);
+            out.writeInt(nParticles);
+            out.writeBoolean(particles != null);
+
+            if (particles != null) {
+                final int firstCol = getFirstCol(rank, nSlabs, nCols), lastCol = getFirstCol(rank + 1, nSlabs, nCols);
+                ParticleStore slab = new ParticleStore(particles.size());
+                int n = 0;
+                for (int i = 0; i < particles.size(); ++i) {
+                    int col = getCol(particles.x[i], cellWidth, nCols);
+                    if (col >= firstCol && col < lastCol) {
+                        slab.set(n++, particles.x[i], particles.y[i], particles.theta[i], particles.id[i]);
+                    }
+                }
+                slab.setSize(n);
+                writeParticles(out, slab);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * @param rank   the index of the slab
+     * @param nSlabs the number of slabs
+     * @param nCols  the number of columns in the grid
+     * @return the first column of the slab, or the number of columns for the slab after the last
+     */
+    static int getFirstCol(int rank, int nSlabs, int nCols) {
+        return (int) ((long) rank * nCols / nSlabs);
+    }
+
+    /**
+     * @return the column of the grid a position lies in, as {@link CellList} places it
+     */
+    static int getCol(double x, double cellWidth, int nCols) {
+        int col = (int) (x / cellWidth);
+        return col >= nCols ? nCols - 1 : col;
+    }
+
+    /**
+     * runs the workers, box counting their slabs every so many steps for several target averages
+     *
+     * @param steps the number of steps to take
+     * @param every the number of steps between each count
+     * @param Nls   the target averages
+     * @return the Delta N for each target average of each count, in order
+     * @throws IOException if a worker fails
+     */
+    public List<double[]> run(long steps, int every, double[] Nls) throws IOException {
+        if (every < 1) throw new IllegalArgumentException("every must be at least 1");
+        // the bins are sized for the smallest window, as ProcessMultiScaleDeltaN sizes them
+        final double[] lens = new double[Nls.length];
+        double minLen = Double.MAX_VALUE;
+        for (int j = 0; j < Nls.length; ++j) {
+            lens[j] = DeltaNProcessor.getWindowSize(Nls[j], packingFraction);
+            minLen = Math.min(minLen, lens[j]);
+        }
+        final double binSize = minLen / DeltaNProcessor.BINS_PER_WINDOW;
+
+        List<double[]> results = new ArrayList<>();
+        for (long taken = 0; taken < steps; ) {
+            long batch = Math.min(every, steps - taken);
+            for (DataOutputStream out : outs) {
+                out.writeInt(RUN);
+                out.writeLong(batch);
+                out.writeDouble(binSize);
+                out.writeInt(lens.length);
+                for (double len : lens) {
+                    out.writeDouble(len);
+                }
+                out.flush();
+            }
+            results.add(this.gather(lens.length));
+            taken += batch;
+        }
+        return results;
+    }
+
+    /**
+     * reads the counts of every worker once they have finished running, combining the mean and spread of each
+     * worker's windows into those of every window (Chan et al., 1979)
+     *
+     * @param nLens the number of sizes of window
+     * @return the Delta N for each size of window
+     */
+    private double[] gather(int nLens) throws IOException {
+        final long[] counts = new long[nLens];
+        final double[] means = new double[nLens], s = new double[nLens];
+        int total = 0;
+        for (int rank = 0; rank < workers.length; ++rank) {
+            DataInputStream in = ins[rank];
+            long workerStep = in.readLong();
+            if (rank == 0) step = workerStep;
+            else if (workerStep != step) throw new IOException("workers are out of step");
+            total += in.readInt();
+            for (int j = 0; j < nLens; ++j) {
+                final long count = in.readLong();
+                final double mean = in.readDouble(), m2 = in.readDouble();
+                if (count == 0) continue;
+                final long combined = counts[j] + count;
+                final double delta = mean - means[j];
+                means[j] += delta * count / combined;
+                s[j] += m2 + delta * delta * counts[j] * count / combined;
+                counts[j] = combined;
+            }
+        }
+        if (total != nParticles) throw new IOException("workers lost track of particles");
+
+        // every position on the lattice is visited once by some worker, so this is the variance of every window
+        final double[] deltaNs = new double[nLens];
+        for (int j = 0; j < nLens; ++j) {
+            deltaNs[j] = Math.sqrt(s[j] / counts[j]);
+        }
+        return deltaNs;
+    }
+
+    /**
+     * @return the step the workers have reached
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * writes the number of particles in a store, then their positions, headings and ids
+     */
+    static void writeParticles(DataOutputStream out, ParticleStore particles) throws IOException {
+        final int n = particles.size();
+        out.writeInt(n);
+        for (int i = 0; i < n; ++i) {
+            out.writeDouble(particles.x[i]);
+        }
+        for (int i = 0; i < n; ++i) {
+            out.writeDouble(particles.y[i]);
+        }
+        for (int i = 0; i < n; ++i) {
+            out.writeDouble(particles.theta[i]);
+        }
+        for (int i = 0; i < n; ++i) {
+            out.writeInt(particles.id[i]);
+        }
+    }
+
+    /**
+     * reads particles written by {@link #writeParticles} onto the end of a store, replacing the store with a larger
+     * one if they don't fit
+     *
+     * @return the store holding the particles
+     */
+    static ParticleStore readParticles(DataInputStream in, ParticleStore particles) throws IOException {
+        final int n = in.readInt(), first = particles.size();
+        if (first + n > particles.capacity())
+            particles = particles.withCapacity(Math.max(first + n, 2 * particles.capacity()));
+        particles.setSize(first + n);
+        readDoubles(in, particles.x, first, n);
+        readDoubles(in, particles.y, first, n);
+        readDoubles(in, particles.theta, first, n);
+        for (int i = first; i < first + n; ++i) {
+            particles.id[i] = in.readInt();
+        }
+        return particles;
+    }
+
+    private static void readDoubles(DataInputStream in, double[] values, int first, int n) throws IOException {
+        for (int i = first; i < first + n; ++i) {
+            values[i] = in.readDouble();
+        }
+    }
+
+    /**
+     * tells the workers to exit and waits for them, killing any that don't
+     */
+    @Override
+    public void close() {
+        for (int rank = 0; rank < workers.length; ++rank) {
+            try {
+                if (outs[rank] != null) {
+                    outs[rank].writeInt(CLOSE);
+                    outs[rank].flush();
+                }
+                if (sockets[rank] != null) sockets[rank].close();
+            } catch (IOException e) {
+                // the worker has already gone
+            }
+        }
+        for (Process worker : workers) {
+            if (worker == null) continue;
+            try {
+                if (!worker.waitFor(10, TimeUnit.SECONDS)) worker.destroyForcibly();
+            } catch (InterruptedException e) {
+                worker.destroyForcibly();
+                Thread.currentThread()
+                      .interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.benjft.activemattertool.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A worker process owning one slab of columns of a simulation split up by a {@link SlabCoordinator}. Each step the
+ * worker swaps the particles in its edge columns with the slabs either side as ghosts, finds the collisions of its own
+ * particles with the same kernel as a whole simulation, moves them, then hands any that have left its slab to its
+ * neighbours. The swaps keep the slabs in step with each other, so the coordinator is only heard from between runs.
+ * After each run the worker counts the particles in windows with a {@link SlabBoxCounter}, and only the mean and spread
+ * of its windows' counts go back to the coordinator.
+ * <p>
+ * Positions are shifted into a local box one column wider than the slab on each side, with the ghosts in the outer
+ * columns. The kernel's periodic shifts across the local box then only ever pair ghosts with ghosts, and the deltas of
+ * ghosts are thrown away.
+ */
+public class SlabWorker implements AutoCloseable {
+    private final double width, height, speed, dPos, dAng, dTime, cellWidth, cellHeight;
+    private final int nCols, nSlabs, rank, firstCol, lastCol;
+    // where the local box starts in simulation coordinates, and the shift of ghosts across the periodic boundary
+    private final double origin, leftShift, rightShift;
+    private final NoiseSource noise;
+    private final ForceKernel forceKernel;
+    private long step;
+
+    // the particles of the slab in simulation coordinates
+    private ParticleStore owned;
+    // the particles of the slab then the ghosts, in local coordinates
+    private ParticleStore local;
+    private CellList cells;
+    private double[] deltaX, deltaY;
+    // counts the windows of the slab, made again whenever the sizes of window change
+    private SlabBoxCounter boxCounter;
+    private double binSize;
+    private double[] lens;
+    // particles sent to and received from each side
+    private ParticleStore toLeft, toRight, fromLeft, fromRight;
+
+    private final Socket coordinator, left, right;
+    private final DataInputStream coordinatorIn, leftIn, rightIn;
+    private final DataOutputStream coordinatorOut, leftOut, rightOut;
+    // writes to the neighbours while reading from them, so a full socket buffer can't hold up both sides
+    private final ExecutorService sender = Executors.newSingleThreadExecutor();
+
+    private SlabWorker(int rank, Socket coordinator, DataInputStream coordinatorIn, DataOutputStream coordinatorOut,
+                       ServerSocket server) throws IOException {
+        this.rank = rank;
+        this.coordinator = coordinator;
+        this.coordinatorIn = coordinatorIn;
+        this.coordinatorOut = coordinatorOut;
+
+        final DataInputStream in = coordinatorIn;
+        this.width = in.readDouble();
+        this.height = in.readDouble();
+        this.speed = in.readDouble();
+        final double k = in.readDouble();
+        this.dPos = in.readDouble();
+        this.dAng = in.readDouble();
+        this.dTime = in.readDouble();
+        final long seed = in.readLong();
+        this.noise = new CounterNoise(seed);
+        this.step = in.readLong();
+        this.nCols = in.readInt();
+        final int nRows = in.readInt();
+        this.nSlabs = in.readInt();
+        this.firstCol = SlabCoordinator.getFirstCol(rank, nSlabs, nCols);
+        this.lastCol = SlabCoordinator.getFirstCol(rank + 1, nSlabs, nCols);
+        final int nThreads = in.readInt();
+        final int rightPort = in.readInt();
+        this.cellWidth = width / nCols;
+        final int nParticles = in.readInt();
+        if (in.readBoolean()) {
+            this.owned = SlabCoordinator.readParticles(in, empty(1024));
+        } else {
+            // draws the same scattering a new Simulation starts from, keeping only the particles of the slab
+            this.owned = empty(1024);
+            Random random = new Random(seed);
+            for (int i = 0; i < nParticles; ++i) {
+                final double x = random.nextDouble() * width;
+                final double y = random.nextDouble() * height;
+                final double theta = random.nextDouble() * Math.PI * 2;
+                final int col = SlabCoordinator.getCol(x, cellWidth, nCols);
+                if (col >= firstCol && col < lastCol) {
+                    final int n = owned.size();
+                    if (n == owned.capacity()) owned = owned.withCapacity(2 * n);
+                    owned.setSize(n + 1);
+                    owned.set(n, x, y, theta, i);
+                }
+            }
+        }
+        owned = owned.withCapacity(owned.size() + (owned.size() >> 2) + 1024);
+
+        this.cellHeight = height / nRows;
+        this.origin = (firstCol - 1) * cellWidth;
+        this.leftShift = firstCol == 0 ? -width : 0;
+        this.rightShift = lastCol == nCols ? width : 0;
+        final int localCols = lastCol - firstCol + 2;
+        this.forceKernel = new ForceKernel(localCols * cellWidth, height, k, localCols, nRows);
+        if (nThreads > 1) forceKernel.setThreads(nThreads);
+
+        this.local = new ParticleStore(owned.capacity());
+        this.cells = new CellList(localCols, nRows, local.capacity());
+        this.deltaX = new double[local.capacity()];
+        this.deltaY = new double[local.capacity()];
+        this.toLeft = empty(1024);
+        this.toRight = empty(1024);
+        this.fromLeft = empty(1024);
+        this.fromRight = empty(1024);
+
+        // every worker's server is open before any setup is sent, so connecting first can't wait on an accept
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.right = new Socket(loopback, rightPort);
+        this.left = server.accept();
+        server.close();
+        right.setTcpNoDelay(true);
+        left.setTcpNoDelay(true);
+        this.rightIn = new DataInputStream(new BufferedInputStream(right.getInputStream(), 1 << 16));
+        this.rightOut = new DataOutputStream(new BufferedOutputStream(right.getOutputStream(), 1 << 16));
+        this.leftIn = new DataInputStream(new BufferedInputStream(left.getInputStream(), 1 << 16));
+        this.leftOut = new DataOutputStream(new BufferedOutputStream(left.getOutputStream(), 1 << 16));
+    }
+
+    /**
+     * connects to the coordinator and takes the slab it hands over, then to the neighbouring workers
+     *
+     * @param port the port the coordinator listens on
+     * @param rank the index of the worker's slab
+     * @return the connected worker
+     * @throws IOException if a connection fails
+     */
+    static SlabWorker connect(int port, int rank) throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        Socket coordinator = new Socket(loopback, port);
+        coordinator.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(coordinator.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(coordinator.getOutputStream(), 1 << 16));
+        ServerSocket server = new ServerSocket(0, 1, loopback);
+        out.writeInt(rank);
+        out.writeInt(server.getLocalPort());
+        out.flush();
+        return new SlabWorker(rank, coordinator, in, out, server);
+    }
+
+    /**
+     * runs steps when the coordinator asks, replying after each run with the number of particles in the slab and the
+     * counts of its windows, until told to stop
+     *
+     * @throws IOException if a connection fails
+     */
+    void serve() throws IOException {
+        while (coordinatorIn.readInt() == SlabCoordinator.RUN) {
+            final long steps = coordinatorIn.readLong();
+            final double binSize = coordinatorIn.readDouble();
+            final double[] lens = new double[coordinatorIn.readInt()];
+            for (int j = 0; j < lens.length; ++j) {
+                lens[j] = coordinatorIn.readDouble();
+            }
+            if (boxCounter == null || binSize != this.binSize || !Arrays.equals(lens, this.lens)) {
+                boxCounter = new SlabBoxCounter(width, height, binSize, lens, nCols, nSlabs, rank);
+                this.binSize = binSize;
+                this.lens = lens;
+            }
+
+            for (long i = 0; i < steps; ++i) {
+                this.step();
+            }
+            boxCounter.build(owned);
+            for (int pass = 1; pass <= boxCounter.getPasses(); ++pass) {
+                boxCounter.pass(pass, leftOut, rightIn, sender);
+            }
+            coordinatorOut.writeLong(step);
+            coordinatorOut.writeInt(owned.size());
+            boxCounter.writeStats(coordinatorOut);
+            coordinatorOut.flush();
+        }
+    }
+
+    /**
+     * takes a single Euler step of the particles of the slab
+     */
+    private void step() throws IOException {
+        final int nOwned = owned.size();
+
+        // the edge columns are the ghosts of the neighbouring slabs
+        toLeft.setSize(0);
+        toRight.setSize(0);
+        for (int i = 0; i < nOwned; ++i) {
+            final int col = SlabCoordinator.getCol(owned.x[i], cellWidth, nCols);
+            if (col == firstCol) toLeft = append(toLeft, owned, i);
+            if (col == lastCol - 1) toRight = append(toRight, owned, i);
+        }
+        this.exchange();
+
+        // the slab then the ghosts, shifted into the local box
+        final int n = nOwned + fromLeft.size() + fromRight.size();
+        if (n > local.capacity()) {
+            final int capacity = n + (n >> 2);
+            local = new ParticleStore(capacity);
+            cells = new CellList(cells.getNCols(), cells.getNRows(), capacity);
+            deltaX = new double[capacity];
+            deltaY = new double[capacity];
+        }
+        local.setSize(n);
+        int j = 0;
+        for (int i = 0; i < nOwned; ++i) {
+            local.set(j++, owned.x[i] - origin, owned.y[i], owned.theta[i], owned.id[i]);
+        }
+        for (int i = 0; i < fromLeft.size(); ++i) {
+            local.set(j++, fromLeft.x[i] + leftShift - origin, fromLeft.y[i], fromLeft.theta[i], fromLeft.id[i]);
+        }
+        for (int i = 0; i < fromRight.size(); ++i) {
+            local.set(j++, fromRight.x[i] + rightShift - origin, fromRight.y[i], fromRight.theta[i],
+                    fromRight.id[i]);
+        }
+
+        cells.build(local, cellWidth, cellHeight, false);
+        Arrays.fill(deltaX, 0, n, 0);
+        Arrays.fill(deltaY, 0, n, 0);
+        forceKernel.apply(local, cells, deltaX, deltaY, false);
+
+        // move the particles of the slab as Simulation.getDeltas and applyDeltas do for an Euler step
+        for (int i = 0; i < nOwned; ++i) {
+            final double theta = owned.theta[i];
+            final int id = owned.id[i];
+            double dX = deltaX[i] + speed * Math.sin(theta) + dPos * noise.gaussian(step, id, 0);
+            double dY = deltaY[i] + speed * Math.cos(theta) + dPos * noise.gaussian(step, id, 1);
+            double dTheta = dAng * noise.gaussian(step, id, 2);
+
+            double x = owned.x[i] + dX * dTime;
+            double y = owned.y[i] + dY * dTime;
+            if (x < 0) x += width;
+            else if (x >= width) x -= width;
+            if (y < 0) y += height;
+            else if (y >= height) y -= height;
+            owned.set(i, x, y, theta + dTheta * dTime, id);
+        }
+        ++step;
+
+        // hand over the particles that have left the slab
+        toLeft.setSize(0);
+        toRight.setSize(0);
+        final int leftCol = (firstCol + nCols - 1) % nCols, rightCol = lastCol % nCols;
+        int kept = 0;
+        for (int i = 0; i < nOwned; ++i) {
+            final int col = SlabCoordinator.getCol(owned.x[i], cellWidth, nCols);
+            if (col >= firstCol && col < lastCol) {
+                owned.set(kept++, owned.x[i], owned.y[i], owned.theta[i], owned.id[i]);
+            } else if (col == leftCol) {
+                toLeft = append(toLeft, owned, i);
+            } else if (col == rightCol) {
+                toRight = append(toRight, owned, i);
+            } else {
+                throw new IllegalStateException("particle " + owned.id[i] + " moved more than a column in one step");
+            }
+        }
+        owned.setSize(kept);
+        this.exchange();
+        for (int i = 0; i < fromLeft.size(); ++i) {
+            owned = append(owned, fromLeft, i);
+        }
+        for (int i = 0; i < fromRight.size(); ++i) {
+            owned = append(owned, fromRight, i);
+        }
+    }
+
+    /**
+     * sends the particles gathered for each side and receives those the neighbours send back
+     */
+    private void exchange() throws IOException {
+        // neighbours read from their right first, so writing to the left first never waits on a later read
+        Future<Void> sent = sender.submit(() -> {
+            SlabCoordinator.writeParticles(leftOut, toLeft);
+            leftOut.flush();
+            SlabCoordinator.writeParticles(rightOut, toRight);
+            rightOut.flush();
+            return null;
+        });
+        fromRight.setSize(0);
+        fromRight = SlabCoordinator.readParticles(rightIn, fromRight);
+        fromLeft.setSize(0);
+        fromLeft = SlabCoordinator.readParticles(leftIn, fromLeft);
+        try {
+            sent.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+            throw new IOException("interrupted while sending to a neighbour", e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to send to a neighbour", e.getCause());
+        }
+    }
+
+    /**
+     * @param capacity the most particles the store has space for
+     * @return a new store holding no particles
+     */
+    private static ParticleStore empty(int capacity) {
+        ParticleStore store = new ParticleStore(capacity);
+        store.setSize(0);
+        return store;
+    }
+
+    /**
+     * copies a particle onto the end of a store, replacing the store with a larger one if it is full
+     *
+     * @return the store holding the particle
+     */
+    private static ParticleStore append(ParticleStore store, ParticleStore from, int i) {
+        final int n = store.size();
+        if (n == store.capacity()) store = store.withCapacity(Math.max(2 * n, 16));
+        store.setSize(n + 1);
+        store.set(n, from.x[i], from.y[i], from.theta[i], from.id[i]);
+        return store;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sender.shutdown();
+        forceKernel.close();
+        left.close();
+        right.close();
+        coordinator.close();
+    }
+
+    /**
+     * the entry point of a worker process, started by a {@link SlabCoordinator}
+     *
+     * @param args the port the coordinator listens on and the index of the worker's slab
+     */
+    public static void main(String[] args) {
+        try (SlabWorker worker = connect(Integer.parseInt(args[0]), Integer.parseInt(args[1]))) {
+            worker.serve();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -2,12 +2,38 @@ package com.benjft.activemattertool.simulation;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 public interface StateProcessor<T> {
     ExecutorService executorPool = Executors.newWorkStealingPool();
 
-    void advance(Future<double[][]> futureState, Future<int[][][]> futureGrid);
+    /**
+     * called on the simulation's stepping thread each time a new frame is completed. Must return quickly, so work on
+     * the frame should be handed to another thread, pinning the frame with {@link Frame#retain()} until it is done.
+     * Frames that arrive while earlier work is still running can simply be skipped.
+     *
+     * @param frame the newly completed frame
+     */
+    void advance(Frame frame);
+
+    /**
+     * processes a frame on the calling thread and returns the result, for replaying recorded frames rather than
+     * following a running simulation. The frame doesn't need to be pinned.
+     *
+     * @param frame the frame to process
+     * @return the result for the frame
+     */
+    default T process(Frame frame) {
+        throw new UnsupportedOperationException(this.getClass()
+                                                    .getSimpleName() + " can't process frames directly");
+    }
+
+    /**
+     * forgets anything carried over from the frames already worked on, so the next frame gives the same result as it
+     * would for a newly made processor. Used before replaying a run of frames, and must not be called while a frame is
+     * being worked on
+     */
+    default void reset() {
+    }
 
     T getValue();
 
@@ -0,0 +1,216 @@
+package com.benjft.activemattertool.simulation;
+
+/**
+ * Averages a value measured once per frame over time, with an error bar that allows for the frames being correlated.
+ * <p>
+ * In {@link Mode#BLOCK} mode every frame since the last reset counts equally, and the error comes from a blocking
+ * analysis: frames are averaged in pairs, then pairs of pairs and so on, and the error is taken from the coarsest
+ * blocks that are still numerous enough, which are long enough to be nearly independent. In {@link Mode#EXPONENTIAL}
+ * mode older frames fade by a constant weight each frame, so the average follows slow drifts, and the error comes from
+ * the autocorrelation time.
+ * <p>
+ * The latest frames are kept in a fixed-size ring, from which the integrated autocorrelation time is estimated with a
+ * self-consistent window. Nothing is allocated as values are added.
+ */
+public class TimeAverage {
+    // the default number of recent frames kept for the autocorrelation time
+    static final int DEFAULT_CAPACITY = 1024;
+    // blocks of the blocking analysis are only trusted while there are at least this many of them
+    private static final int MIN_BLOCKS = 16;
+    // the autocorrelation is summed over a window at least this many times the autocorrelation time
+    private static final double WINDOW_FACTOR = 5;
+    private static final int LEVELS = 48;
+
+    /**
+     * The ways frames are weighted in the average
+     */
+    public enum Mode {
+        /**
+         * every frame since the last reset counts equally
+         */
+        BLOCK,
+        /**
+         * each frame counts for a constant fraction more than the one before it
+         */
+        EXPONENTIAL
+    }
+
+    private Mode mode = Mode.BLOCK;
+    private double weight = 0.05;
+
+    // the latest values, oldest first from the head once full
+    private final double[] ring;
+    private int head = 0, size = 0;
+
+    // the mean and sum of squared deviations of the blocks of 2^level frames, and the frame waiting for its pair
+    private final long[] blockCounts = new long[LEVELS];
+    private final double[] blockMeans = new double[LEVELS], blockM2s = new double[LEVELS];
+    private final double[] pending = new double[LEVELS];
+    private final boolean[] hasPending = new boolean[LEVELS];
+
+    // the exponentially weighted mean and variance
+    private double emaMean, emaVariance;
+    private long count = 0;
+
+    public TimeAverage() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of recent frames kept to estimate the autocorrelation time from
+     */
+    public TimeAverage(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity must be at least 2");
+        this.ring = new double[capacity];
+    }
+
+    /**
+     * adds the value of a new frame
+     *
+     * @param value the value
+     */
+    public synchronized void add(double value) {
+        ring[head] = value;
+        head = (head + 1) % ring.length;
+        if (size < ring.length) ++size;
+
+        if (count == 0) {
+            emaMean = value;
+            emaVariance = 0;
+        } else {
+            final double delta = value - emaMean;
+            emaMean += weight * delta;
+            emaVariance = (1 - weight) * (emaVariance + weight * delta * delta);
+        }
+        ++count;
+
+        // each level takes the mean of a pair of blocks of the level below
+        double block = value;
+        for (int level = 0; level < LEVELS; ++level) {
+            final long n = ++blockCounts[level];
+            final double delta = block - blockMeans[level];
+            blockMeans[level] += delta / n;
+            blockM2s[level] += delta * (block - blockMeans[level]);
+
+            if (!hasPending[level]) {
+                pending[level] = block;
+                hasPending[level] = true;
+                break;
+            }
+            block = 0.5 * (pending[level] + block);
+            hasPending[level] = false;
+        }
+    }
+
+    /**
+     * forgets every frame added so far
+     */
+    public synchronized void reset() {
+        head = size = 0;
+        count = 0;
+        for (int level = 0; level < LEVELS; ++level) {
+            blockCounts[level] = 0;
+            blockMeans[level] = blockM2s[level] = 0;
+            hasPending[level] = false;
+        }
+    }
+
+    /**
+     * @return the average over time, or NaN if nothing has been added
+     */
+    public synchronized double getAverage() {
+        if (count == 0) return Double.NaN;
+        return mode == Mode.BLOCK ? blockMeans[0] : emaMean;
+    }
+
+    /**
+     * @return the standard error of the average, or NaN if too few frames have been added to estimate it
+     */
+    public synchronized double getError() {
+        if (count < 2) return Double.NaN;
+        if (mode == Mode.BLOCK) {
+            // the coarsest level with enough blocks has the least correlated blocks
+            int level = 0;
+            while (level + 1 < LEVELS && blockCounts[level + 1] >= MIN_BLOCKS) {
+                ++level;
+            }
+            final long n = blockCounts[level];
+            return Math.sqrt(blockM2s[level] / (n - 1) / n);
+        }
+        // the frames the exponential average effectively covers, fewer while it is still filling
+        final double effective = Math.min(count, (2 - weight) / weight);
+        return Math.sqrt(emaVariance * 2 * this.getAutocorrelationTime() / effective);
+    }
+
+    /**
+     * estimates the integrated autocorrelation time from the recent frames, summing the autocorrelation over the
+     * smallest window that is at least a few times the estimate
+     *
+     * @return the autocorrelation time in frames, 0.5 for uncorrelated frames, or NaN if fewer than two are kept
+     */
+    public synchronized double getAutocorrelationTime() {
+        final int n = size;
+        if (n < 2) return Double.NaN;
+        final int oldest = size < ring.length ? 0 : head;
+
+        double mean = 0;
+        for (int i = 0; i < n; ++i) {
+            mean += ring[(oldest + i) % ring.length];
+        }
+        mean /= n;
+        final double c0 = this.getAutocovariance(oldest, n, mean, 0);
+        if (c0 == 0) return 0.5;
+
+        double tau = 0.5;
+        for (int lag = 1; lag < n / 2; ++lag) {
+            tau += this.getAutocovariance(oldest, n, mean, lag) / c0;
+            if (lag >= WINDOW_FACTOR * tau) break;
+        }
+        return Math.max(tau, 0.5);
+    }
+
+    /**
+     * @return the autocovariance of the kept frames at a lag
+     */
+    private double getAutocovariance(int oldest, int n, double mean, int lag) {
+        double sum = 0;
+        for (int i = 0; i + lag < n; ++i) {
+            sum += (ring[(oldest + i) % ring.length] - mean) * (ring[(oldest + i + lag) % ring.length] - mean);
+        }
+        return sum / (n - lag);
+    }
+
+    /**
+     * @return the number of frames added since the last reset
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * sets how frames are weighted, which applies to the frames already added as well as later ones
+     *
+     * @param mode the weighting to use
+     */
+    public synchronized void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public synchronized double getWeight() {
+        return weight;
+    }
+
+    /**
+     * sets the weight of each new frame in {@link Mode#EXPONENTIAL} mode
+     *
+     * @param weight the weight, above 0 and at most 1, where 1 only counts the latest frame
+     */
+    public synchronized void setWeight(double weight) {
+        if (!(weight > 0 && weight <= 1)) throw new IllegalArgumentException("weight must be in (0, 1]");
+        this.weight = weight;
+    }
+}
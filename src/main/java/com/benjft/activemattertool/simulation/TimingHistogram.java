@@ -0,0 +1,76 @@
+package com.benjft.activemattertool.simulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in buckets of powers of two nanoseconds, which can be recorded into from any thread without
+ * locking. Percentiles are given as the upper edge of the bucket they fall in, so are accurate to a factor of two.
+ */
+class TimingHistogram {
+    // bucket b holds durations in [2^(b-1), 2^b), with bucket 0 holding durations of zero
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(), total = new AtomicLong();
+
+    /**
+     * @param nanos the duration to record
+     */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(Math.min(BUCKETS - Long.numberOfLeadingZeros(nanos), BUCKETS - 1));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of the durations recorded, in nanoseconds
+     */
+    long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @return the mean duration in nanoseconds, or 0 if nothing has been recorded
+     */
+    double getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : (double) total.get() / count;
+    }
+
+    /**
+     * @param quantile the fraction of durations to fall below the result, between 0 and 1
+     * @return an upper bound of the quantile in nanoseconds, or 0 if nothing has been recorded
+     */
+    long getQuantile(double quantile) {
+        long count = 0;
+        long[] counts = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; ++b) {
+            counts[b] = buckets.get(b);
+            count += counts[b];
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; ++b) {
+            seen += counts[b];
+            if (seen >= rank && counts[b] > 0) return b == 0 ? 0 : 1L << Math.min(b, 62);
+        }
+        return 0;
+    }
+
+    void clear() {
+        for (int b = 0; b < BUCKETS; ++b) {
+            buckets.set(b, 0);
+        }
+        count.set(0);
+        total.set(0);
+    }
+}
@@ -0,0 +1,29 @@
+package com.benjft.activemattertool.trajectory;
+
+/**
+ * How particle values are stored in a trajectory file
+ */
+public enum Encoding {
+    /**
+     * 32 bit floating point values
+     */
+    FLOAT32(4),
+    /**
+     * 16 bit values spread evenly over the width or height of the space and one turn of heading, a third the size of
+     * doubles but only accurate to 1/65536th of the space
+     */
+    INT16(2);
+
+    private final int bytes;
+
+    Encoding(int bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the number of bytes used for each value
+     */
+    public int getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,56 @@
+package com.benjft.activemattertool.trajectory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The layout of a trajectory file. All values are little endian.
+ * <p>
+ * The file starts with a fixed size header holding the magic, the encoding, the number of particles, the stride
+ * between recorded steps, the number of frames written and the parameters and seed of the simulation. Frames follow
+ * back to back, each a step number then every x, every y and every heading in particle id order, so the position of
+ * any frame is known from its index. The file may be longer than the frames written, as space is mapped a chunk at a
+ * time, so readers must use the frame count from the header.
+ */
+final class TrajectoryFormat {
+    static final byte[] MAGIC = "AMTTRJ01".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_SIZE = 128;
+
+    // offsets of the header fields
+    static final int ENCODING = 8, N_PARTICLES = 12, STRIDE = 16, N_FRAMES = 24, WIDTH = 32, HEIGHT = 40, SPEED = 48,
+            K = 56, D_POS = 64, D_ANG = 72, D_TIME = 80, PACKING_FRACTION = 88, SEED = 96;
+
+    // the number of levels of a quantised value
+    private static final double LEVELS = 65536;
+
+    private TrajectoryFormat() {
+    }
+
+    /**
+     * @param encoding   how particle values are stored
+     * @param nParticles the number of particles in a frame
+     * @return the size of a frame in bytes
+     */
+    static long getFrameSize(Encoding encoding, int nParticles) {
+        return Long.BYTES + 3L * nParticles * encoding.getBytes();
+    }
+
+    /**
+     * quantises a periodic value to 16 bits
+     *
+     * @param value  the value
+     * @param period the period of the value
+     * @return the nearest of 65536 levels across one period
+     */
+    static short quantise(double value, double period) {
+        return (short) Math.round(value / period * LEVELS);
+    }
+
+    /**
+     * @param quantised a value from {@link #quantise(double, double)}
+     * @param period    the period of the value
+     * @return the value, within [0, period)
+     */
+    static double dequantise(short quantised, double period) {
+        return (quantised & 0xffff) / LEVELS * period;
+    }
+}
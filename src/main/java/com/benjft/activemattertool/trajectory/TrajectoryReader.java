@@ -0,0 +1,279 @@
+package com.benjft.activemattertool.trajectory;
+
+import com.benjft.activemattertool.simulation.Frame;
+import com.benjft.activemattertool.simulation.ParticleStore;
+import com.benjft.activemattertool.simulation.Simulation;
+import com.benjft.activemattertool.simulation.StateProcessor;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Reads a trajectory file written by {@link TrajectoryWriter}, see {@link TrajectoryFormat} for the layout.
+ * <p>
+ * The file is memory-mapped a chunk at a time as frames are asked for, and any frame can be read by its index. Reads
+ * don't change any shared position, so frames can be read on many threads at once, which {@link #replay} uses to run
+ * analyses over a recorded run in parallel across frames.
+ */
+public class TrajectoryReader implements AutoCloseable {
+    // the size of file mapped at a time, rounded down to whole frames
+    private static final long CHUNK_SIZE = 256 << 20;
+    // the frames replayed in order by one processor, fixed so the results don't depend on the number of threads
+    private static final int RUN_LENGTH = 64;
+
+    private final FileChannel channel;
+    private final Encoding encoding;
+    private final int nParticles, stride, nFrames;
+    private final double width, height, speed, k, dPos, dAng, dTime, packingFraction;
+    private final long seed;
+    private final long frameSize;
+    private final int framesPerChunk;
+    // chunks are mapped the first time a frame in them is read
+    private final MappedByteBuffer[] chunks;
+
+    /**
+     * opens a trajectory file
+     *
+     * @param path the file to read
+     * @throws IOException if the file can't be read or isn't a trajectory
+     */
+    public TrajectoryReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() < TrajectoryFormat.HEADER_SIZE) throw new IOException(path + " is not a trajectory");
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TrajectoryFormat.HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[TrajectoryFormat.MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, TrajectoryFormat.MAGIC)) throw new IOException(path + " is not a trajectory");
+
+        this.encoding = Encoding.values()[header.getInt(TrajectoryFormat.ENCODING)];
+        this.nParticles = header.getInt(TrajectoryFormat.N_PARTICLES);
+        this.stride = header.getInt(TrajectoryFormat.STRIDE);
+        this.width = header.getDouble(TrajectoryFormat.WIDTH);
+        this.height = header.getDouble(TrajectoryFormat.HEIGHT);
+        this.speed = header.getDouble(TrajectoryFormat.SPEED);
+        this.k = header.getDouble(TrajectoryFormat.K);
+        this.dPos = header.getDouble(TrajectoryFormat.D_POS);
+        this.dAng = header.getDouble(TrajectoryFormat.D_ANG);
+        this.dTime = header.getDouble(TrajectoryFormat.D_TIME);
+        this.packingFraction = header.getDouble(TrajectoryFormat.PACKING_FRACTION);
+        this.seed = header.getLong(TrajectoryFormat.SEED);
+
+        this.frameSize = TrajectoryFormat.getFrameSize(encoding, nParticles);
+        this.framesPerChunk = (int) Math.max(1, CHUNK_SIZE / frameSize);
+        // a file still being written may count more frames than it held when its size was checked
+        long complete = (channel.size() - TrajectoryFormat.HEADER_SIZE) / frameSize;
+        this.nFrames = (int) Math.min(header.getLong(TrajectoryFormat.N_FRAMES), complete);
+        this.chunks = new MappedByteBuffer[(nFrames + framesPerChunk - 1) / framesPerChunk];
+    }
+
+    /**
+     * finds the chunk holding a frame, mapping it if it hasn't been already
+     *
+     * @param index the index of the frame
+     * @return the chunk
+     */
+    private synchronized MappedByteBuffer getChunk(int index) throws IOException {
+        final int chunk = index / framesPerChunk;
+        if (chunks[chunk] == null) {
+            long start = TrajectoryFormat.HEADER_SIZE + (long) chunk * framesPerChunk * frameSize;
+            long size = Math.min((long) framesPerChunk, nFrames - (long) chunk * framesPerChunk) * frameSize;
+            chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            chunks[chunk].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks[chunk];
+    }
+
+    /**
+     * @param index the index of the frame
+     * @return the step the frame was recorded at
+     * @throws IOException if the frame can't be read
+     */
+    public long getStep(int index) throws IOException {
+        this.checkIndex(index);
+        return this.getChunk(index)
+                   .getLong(this.getOffset(index));
+    }
+
+    /**
+     * reads the particles of a frame, in the order of their ids
+     *
+     * @param index the index of the frame
+     * @param into  the store to fill, which must hold as many particles as the recording
+     * @throws IOException if the frame can't be read
+     */
+    public void readFrame(int index, ParticleStore into) throws IOException {
+        this.checkIndex(index);
+        if (into.size() != nParticles) throw new IllegalArgumentException("store is the wrong size");
+
+        final MappedByteBuffer chunk = this.getChunk(index);
+        final int bytes = encoding.getBytes();
+        final int xs = this.getOffset(index) + Long.BYTES;
+        final int ys = xs + nParticles * bytes, thetas = ys + nParticles * bytes;
+        if (encoding == Encoding.FLOAT32) {
+            for (int i = 0; i < nParticles; ++i) {
+                int offset = i * Float.BYTES;
+                into.set(i, chunk.getFloat(xs + offset), chunk.getFloat(ys + offset), chunk.getFloat(thetas + offset),
+                        i);
+            }
+        } else {
+            for (int i = 0; i < nParticles; ++i) {
+                int offset = i * Short.BYTES;
+                into.set(i, TrajectoryFormat.dequantise(chunk.getShort(xs + offset), width),
+                        TrajectoryFormat.dequantise(chunk.getShort(ys + offset), height),
+                        TrajectoryFormat.dequantise(chunk.getShort(thetas + offset), 2 * Math.PI), i);
+            }
+        }
+    }
+
+    /**
+     * reads a frame into a frame of a simulation made by {@link #newSimulation()}
+     *
+     * @param index   the index of the frame
+     * @param sim     the simulation the frame belongs to
+     * @param frame   a frame from {@link Simulation#newFrame()} to fill
+     * @param scratch a store to read the particles into before they are sorted into the frame
+     * @throws IOException if the frame can't be read
+     */
+    public void readFrame(int index, Simulation sim, Frame frame, ParticleStore scratch) throws IOException {
+        this.readFrame(index, scratch);
+        sim.loadFrame(frame, scratch, this.getStep(index));
+    }
+
+    /**
+     * creates a simulation with the recorded parameters, starting from the first frame. Used to give processors the
+     * parameters of the recording, it isn't meant to be stepped.
+     *
+     * @return the new simulation
+     * @throws IOException if the first frame can't be read
+     */
+    public Simulation newSimulation() throws IOException {
+        ParticleStore particles = new ParticleStore(nParticles);
+        long step = 0;
+        if (nFrames > 0) {
+            this.readFrame(0, particles);
+            step = this.getStep(0);
+        }
+        return Simulation.fromState(width, height, speed, k, dPos, dAng, dTime, seed, particles, step);
+    }
+
+    /**
+     * runs an analysis over a range of frames, split into runs of consecutive frames shared out between several
+     * threads. Each thread has its own processor, which is reset before each run and then processes the run's frames
+     * in order, so processors that carry results between frames see the frames in order. The runs are the same
+     * however many threads there are, so the results only depend on the frames and the processor.
+     *
+     * @param sim      a simulation made by {@link #newSimulation()}
+     * @param from     the index of the first frame
+     * @param to       the index to stop before
+     * @param factory  makes a new processor of the simulation for each thread, which should be made to only work on
+     *                 frames passed to it
+     * @param nThreads the number of threads to use
+     * @param <T>      the type of result
+     * @return the result for each frame, in order
+     * @throws IOException          if a frame can't be read
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public <T> List<T> replay(Simulation sim, int from, int to, Supplier<? extends StateProcessor<T>> factory,
+                              int nThreads) throws IOException, InterruptedException {
+        if (from < 0 || to > nFrames || from > to) throw new IndexOutOfBoundsException("bad range of frames");
+        final int n = to - from;
+        final List<T> results = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            results.add(null);
+        }
+
+        final AtomicInteger nextRun = new AtomicInteger();
+        List<Callable<Void>> threads = new ArrayList<>(nThreads);
+        for (int thread = 0; thread < nThreads; ++thread) {
+            threads.add(() -> {
+                StateProcessor<T> processor = factory.get();
+                processor.setActive(false);
+                Frame frame = sim.newFrame();
+                ParticleStore scratch = new ParticleStore(nParticles);
+                int first;
+                while ((first = from + nextRun.getAndIncrement() * RUN_LENGTH) < to) {
+                    processor.reset();
+                    for (int index = first; index < Math.min(first + RUN_LENGTH, to); ++index) {
+                        this.readFrame(index, sim, frame, scratch);
+                        results.set(index - from, processor.process(frame));
+                    }
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            for (Future<Void> future : executor.invokeAll(threads)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= nFrames) throw new IndexOutOfBoundsException("no frame " + index);
+    }
+
+    /**
+     * @return the position of a frame within its chunk
+     */
+    private int getOffset(int index) {
+        return (int) ((index % framesPerChunk) * frameSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the number of complete frames in the file
+     */
+    public int getNFrames() {
+        return nFrames;
+    }
+
+    public int getNParticles() {
+        return nParticles;
+    }
+
+    /**
+     * @return the number of steps between recorded frames
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    public double getPackingFraction() {
+        return packingFraction;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+}
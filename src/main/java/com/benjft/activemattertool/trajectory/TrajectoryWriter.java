@@ -0,0 +1,206 @@
+package com.benjft.activemattertool.trajectory;
+
+import com.benjft.activemattertool.simulation.Frame;
+import com.benjft.activemattertool.simulation.ParticleStore;
+import com.benjft.activemattertool.simulation.Simulation;
+import com.benjft.activemattertool.simulation.StateProcessor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every stride-th frame of a simulation to a trajectory file, see {@link TrajectoryFormat} for the layout.
+ * <p>
+ * Frames are pinned and handed to a writer thread, which copies them into the file through a memory-mapped chunk, so
+ * the stepping thread does no copying. Only a few frames may wait to be written at once. Should the writer fall behind
+ * the simulation waits for it rather than dropping frames or holding more of them.
+ */
+public class TrajectoryWriter implements StateProcessor<Long>, AutoCloseable {
+    // the size of file mapped at a time, rounded down to whole frames
+    private static final long CHUNK_SIZE = 64 << 20;
+    // the most frames waiting to be written before the simulation is held up
+    private static final int MAX_PENDING = 2;
+
+    private final Encoding encoding;
+    private final int nParticles, stride;
+    private final double width, height;
+    private final long frameSize;
+    private final int framesPerChunk;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    // the chunk being written and the frame it starts at, only touched by the writer thread
+    private MappedByteBuffer chunk;
+    private long chunkStart = -1;
+    private volatile long nFrames = 0;
+    private volatile IOException failure;
+    private boolean active = true;
+
+    /**
+     * creates a new trajectory file, overwriting any existing file, and starts recording the simulation into it from
+     * its next step
+     *
+     * @param sim      the simulation to record
+     * @param path     the file to write to
+     * @param stride   the number of steps between recorded frames
+     * @param encoding how particle values are stored
+     * @throws IOException if the file can't be created
+     */
+    public TrajectoryWriter(Simulation sim, Path path, int stride, Encoding encoding) throws IOException {
+        if (stride < 1) throw new IllegalArgumentException("stride must be at least 1");
+        this.encoding = encoding;
+        this.nParticles = sim.getNParticles();
+        this.stride = stride;
+        this.width = sim.getWidth();
+        this.height = sim.getHeight();
+        this.frameSize = TrajectoryFormat.getFrameSize(encoding, nParticles);
+        if (frameSize > Integer.MAX_VALUE) throw new IllegalArgumentException("frames too large to map");
+        this.framesPerChunk = (int) Math.max(1, CHUNK_SIZE / frameSize);
+
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, TrajectoryFormat.HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put(TrajectoryFormat.MAGIC);
+        header.putInt(TrajectoryFormat.ENCODING, encoding.ordinal());
+        header.putInt(TrajectoryFormat.N_PARTICLES, nParticles);
+        header.putInt(TrajectoryFormat.STRIDE, stride);
+        header.putLong(TrajectoryFormat.N_FRAMES, 0);
+        header.putDouble(TrajectoryFormat.WIDTH, sim.getWidth());
+        header.putDouble(TrajectoryFormat.HEIGHT, sim.getHeight());
+        header.putDouble(TrajectoryFormat.SPEED, sim.getSpeed());
+        header.putDouble(TrajectoryFormat.K, sim.getK());
+        header.putDouble(TrajectoryFormat.D_POS, sim.getDPos());
+        header.putDouble(TrajectoryFormat.D_ANG, sim.getDAng());
+        header.putDouble(TrajectoryFormat.D_TIME, sim.getDTime());
+        header.putDouble(TrajectoryFormat.PACKING_FRACTION, sim.getPackingFraction());
+        header.putLong(TrajectoryFormat.SEED, sim.getSeed());
+
+        sim.registerStateProcessor(this);
+    }
+
+    /**
+     * queues the frame to be written if it falls on the stride, waiting if too many frames are already queued
+     */
+    @Override
+    public void advance(Frame frame) {
+        if (failure != null) throw new UncheckedIOException(failure);
+        if (!this.isActive() || frame.getStep() % stride != 0) return;
+
+        pending.acquireUninterruptibly();
+        frame.retain();
+        writer.execute(() -> {
+            try {
+                if (failure == null) this.write(frame);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                frame.release();
+                pending.release();
+            }
+        });
+    }
+
+    /**
+     * copies a frame into the file, mapping the next chunk if the current one is full
+     *
+     * @param frame the frame to write
+     * @throws IOException if the next chunk can't be mapped
+     */
+    private void write(Frame frame) throws IOException {
+        final long index = nFrames;
+        if (chunk == null || index >= chunkStart + framesPerChunk) {
+            // a full chunk is made durable before the header can count frames past it
+            if (chunk != null) {
+                chunk.force();
+                header.force();
+            }
+            // mapping past the end of the file grows it
+            chunkStart = index;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, TrajectoryFormat.HEADER_SIZE + index * frameSize,
+                    framesPerChunk * frameSize);
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        final MappedByteBuffer chunk = this.chunk;
+        final ParticleStore particles = frame.getParticles();
+        final int base = (int) ((index - chunkStart) * frameSize);
+        final int bytes = encoding.getBytes();
+        final int xs = base + Long.BYTES, ys = xs + nParticles * bytes, thetas = ys + nParticles * bytes;
+
+        chunk.putLong(base, frame.getStep());
+        // particles are stored in the order of their ids, not their current order
+        if (encoding == Encoding.FLOAT32) {
+            for (int i = 0; i < nParticles; ++i) {
+                int offset = particles.getId(i) * Float.BYTES;
+                chunk.putFloat(xs + offset, (float) particles.getX(i));
+                chunk.putFloat(ys + offset, (float) particles.getY(i));
+                chunk.putFloat(thetas + offset, (float) particles.getTheta(i));
+            }
+        } else {
+            for (int i = 0; i < nParticles; ++i) {
+                int offset = particles.getId(i) * Short.BYTES;
+                chunk.putShort(xs + offset, TrajectoryFormat.quantise(particles.getX(i), width));
+                chunk.putShort(ys + offset, TrajectoryFormat.quantise(particles.getY(i), height));
+                chunk.putShort(thetas + offset, TrajectoryFormat.quantise(particles.getTheta(i), 2 * Math.PI));
+            }
+        }
+
+        // only count the frame once it is complete, so a reader never sees part of one
+        nFrames = index + 1;
+        header.putLong(TrajectoryFormat.N_FRAMES, nFrames);
+    }
+
+    /**
+     * writes any queued frames then closes the file, cutting off the unused end of the last chunk. The simulation must
+     * have stopped stepping
+     *
+     * @throws IOException if a frame couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        active = false;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread()
+                  .interrupt();
+        }
+        if (chunk != null) chunk.force();
+        header.force();
+        channel.truncate(TrajectoryFormat.HEADER_SIZE + nFrames * frameSize);
+        channel.force(true);
+        channel.close();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * @return the number of frames written
+     */
+    @Override
+    public Long getValue() {
+        return nFrames;
+    }
+
+    @Override
+    public boolean isActive() {
+        return this.active;
+    }
+
+    @Override
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+}
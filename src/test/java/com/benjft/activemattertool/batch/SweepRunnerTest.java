@@ -0,0 +1,92 @@
+package com.benjft.activemattertool.batch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SweepRunnerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SweepConfig newConfig(String phi) {
+        Map<String, String> values = new HashMap<>();
+        values.put("phi", phi);
+        values.put("nt", "200");
+        values.put("speed", "0.1");
+        values.put("k", "2");
+        values.put("dpos", "0.025");
+        values.put("dang", "0.005");
+        values.put("dtime", "0.05");
+        values.put("seed", "3");
+        values.put("nl", "5,10");
+        values.put("steps", "20");
+        values.put("every", "10");
+        return SweepConfig.newInstance(values);
+    }
+
+    @Test
+    public void resumesFromManifestWithTornLine() throws Exception {
+        SweepConfig config = newConfig("0.3, 0.4, 0.5");
+        List<SweepConfig.Run> runs = config.getRuns();
+        Path directory = folder.getRoot()
+                               .toPath();
+        Path manifest = directory.resolve("manifest.csv");
+        // the first run is done, and the second was stopped part way through being listed
+        String listed = "# sweep " + config.getHash() + "\n" + SweepConfig.Run.HEADER + "\n" + runs.get(0)
+                                                                                                   .toRow() + "\n";
+        String torn = runs.get(1)
+                          .toRow()
+                          .substring(0, 5);
+        Files.write(manifest, (listed + torn).getBytes(StandardCharsets.UTF_8));
+
+        new SweepRunner(config, directory, 2).run();
+
+        // the finished run isn't repeated, the others are run and listed once each
+        assertFalse(Files.exists(directory.resolve(runs.get(0)
+                                                       .getFileName())));
+        assertTrue(Files.exists(directory.resolve(runs.get(1)
+                                                      .getFileName())));
+        assertTrue(Files.exists(directory.resolve(runs.get(2)
+                                                      .getFileName())));
+        List<String> lines = Files.readAllLines(manifest);
+        assertEquals(5, lines.size());
+        assertEquals(runs.get(0)
+                         .toRow(), lines.get(2));
+        // the other runs finish in any order
+        assertEquals(new HashSet<>(Arrays.asList(runs.get(1)
+                                                     .toRow(), runs.get(2)
+                                                                   .toRow())), new HashSet<>(lines.subList(3, 5)));
+
+        // every run is done, so running again changes nothing
+        new SweepRunner(config, directory, 2).run();
+        assertEquals(lines, Files.readAllLines(manifest));
+    }
+
+    @Test
+    public void refusesChangedSweep() throws Exception {
+        Path directory = folder.getRoot()
+                               .toPath();
+        new SweepRunner(newConfig("0.3"), directory, 1).run();
+        try {
+            new SweepRunner(newConfig("0.3, 0.4"), directory, 1).run();
+            fail("a manifest of a different sweep was resumed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.benjft.activemattertool.simulation;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Simulation newSimulation() {
+        return Simulation.newInstance(0.4, 500, 0.1, 2, 0.025, 0.005, 0.05, 7);
+    }
+
+    /**
+     * steps a simulation, returning its latest frame
+     */
+    private static Frame step(Simulation sim, int steps) {
+        Frame frame = null;
+        for (int i = 0; i < steps; ++i) {
+            frame = sim.step();
+        }
+        return frame;
+    }
+
+    private Path writeCheckpoint() throws IOException {
+        Path path = folder.getRoot()
+                          .toPath()
+                          .resolve("checkpoint");
+        Simulation sim = newSimulation();
+        try {
+            Checkpoint.write(sim, step(sim, 20), path);
+        } finally {
+            sim.close();
+        }
+        return path;
+    }
+
+    @Test
+    public void resumesBitForBit() throws IOException {
+        Path path = folder.getRoot()
+                          .toPath()
+                          .resolve("checkpoint");
+        Simulation original = newSimulation();
+        Checkpoint.write(original, step(original, 20), path);
+        Simulation resumed = Simulation.fromCheckpoint(path);
+        try {
+            ParticleStore expected = step(original, 30).getParticles();
+            Frame frame = step(resumed, 30);
+            ParticleStore actual = frame.getParticles();
+            assertEquals(50, frame.getStep());
+            assertArrayEquals(expected.x, actual.x, 0);
+            assertArrayEquals(expected.y, actual.y, 0);
+            assertArrayEquals(expected.theta, actual.theta, 0);
+            assertArrayEquals(expected.id, actual.id);
+        } finally {
+            original.close();
+            resumed.close();
+        }
+    }
+
+    @Test
+    public void rejectsCorruptFile() throws IOException {
+        Path path = this.writeCheckpoint();
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(path, bytes);
+        try {
+            Simulation.fromCheckpoint(path);
+            fail("a corrupt checkpoint was resumed from");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsTornFile() throws IOException {
+        Path path = this.writeCheckpoint();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 100);
+        }
+        try {
+            Simulation.fromCheckpoint(path);
+            fail("a torn checkpoint was resumed from");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
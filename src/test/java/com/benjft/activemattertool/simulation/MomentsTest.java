@@ -0,0 +1,82 @@
+package com.benjft.activemattertool.simulation;
+
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MomentsTest {
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * @return moments of a run of skewed values drawn from a seed
+     */
+    private static Moments draw(long seed, int n, double offset) {
+        SplittableRandom random = new SplittableRandom(seed);
+        Moments moments = new Moments();
+        for (int i = 0; i < n; ++i) {
+            double u = random.nextDouble();
+            moments.add(offset + u * u * u);
+        }
+        return moments;
+    }
+
+    @Test
+    public void mergeMatchesAddingEveryValue() {
+        Moments a = draw(1, 1000, 0), b = draw(2, 300, 5);
+
+        Moments all = draw(1, 1000, 0);
+        SplittableRandom random = new SplittableRandom(2);
+        for (int i = 0; i < 300; ++i) {
+            double u = random.nextDouble();
+            all.add(5 + u * u * u);
+        }
+
+        a.merge(b);
+        assertEquals(all.getCount(), a.getCount(), 0);
+        assertEquals(all.getMean(), a.getMean(), TOLERANCE);
+        assertEquals(all.getVariance(), a.getVariance(), TOLERANCE);
+        assertEquals(all.getRelativeErrorOfDeviation(), a.getRelativeErrorOfDeviation(), TOLERANCE);
+    }
+
+    @Test
+    public void mergeLeavesOtherUnchanged() {
+        Moments a = draw(1, 100, 0), b = draw(2, 100, 0);
+        double mean = b.getMean(), variance = b.getVariance();
+        a.merge(b);
+        assertEquals(100, b.getCount(), 0);
+        assertEquals(mean, b.getMean(), 0);
+        assertEquals(variance, b.getVariance(), 0);
+    }
+
+    @Test
+    public void mergeWithEmpty() {
+        Moments a = draw(1, 100, 0), empty = new Moments();
+        double mean = a.getMean(), variance = a.getVariance();
+
+        a.merge(empty);
+        assertEquals(mean, a.getMean(), 0);
+        assertEquals(variance, a.getVariance(), 0);
+
+        empty.merge(a);
+        assertEquals(a.getCount(), empty.getCount(), 0);
+        assertEquals(mean, empty.getMean(), 0);
+        assertEquals(variance, empty.getVariance(), 0);
+    }
+
+    @Test
+    public void scaleKeepsMeanAndShape() {
+        Moments a = draw(1, 1000, 0);
+        double mean = a.getMean(), biased = a.getVariance() * (a.getCount() - 1) / a.getCount();
+        a.scale(0.5);
+        assertEquals(500, a.getCount(), TOLERANCE);
+        assertEquals(mean, a.getMean(), 0);
+        assertEquals(biased, a.getVariance() * (a.getCount() - 1) / a.getCount(), TOLERANCE);
+
+        a.clear();
+        assertEquals(0, a.getCount(), 0);
+        assertTrue(Double.isInfinite(a.getRelativeErrorOfDeviation()));
+    }
+}
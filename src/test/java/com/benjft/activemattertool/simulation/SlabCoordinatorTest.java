@@ -0,0 +1,89 @@
+package com.benjft.activemattertool.simulation;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlabCoordinatorTest {
+    private static final double[] NLS = {10, 40, 160, 640};
+    private static final int NT = 3000, STEPS = 3;
+
+    private static Simulation newSimulation() {
+        return Simulation.newInstance(0.4, NT, 0.1, 2, 0.025, 0.005, 0.05, 42);
+    }
+
+    /**
+     * @return the Delta N of a single process simulation after the steps
+     */
+    private static double[] getExpected() {
+        Simulation sim = newSimulation();
+        try {
+            ProcessMultiScaleDeltaN processor = ProcessMultiScaleDeltaN.newDetached(sim, NLS);
+            Frame frame = null;
+            for (int i = 0; i < STEPS; ++i) {
+                frame = sim.step();
+            }
+            return processor.process(frame);
+        } finally {
+            sim.close();
+        }
+    }
+
+    private static void assertMatches(double[] expected, List<double[]> counts) {
+        assertEquals(1, counts.size());
+        for (int j = 0; j < NLS.length; ++j) {
+            assertEquals("Nl " + NLS[j], expected[j], counts.get(0)[j], expected[j] * 1e-9);
+        }
+    }
+
+    @Test
+    public void matchesSingleProcess() throws IOException {
+        final double[] expected = getExpected();
+        for (int nSlabs = 1; nSlabs <= 3; ++nSlabs) {
+            Simulation sim = newSimulation();
+            try (SlabCoordinator coordinator = SlabCoordinator.newInstance(sim, nSlabs, 1)) {
+                assertMatches(expected, coordinator.run(STEPS, STEPS, NLS));
+                assertEquals(STEPS, coordinator.getStep());
+            } finally {
+                sim.close();
+            }
+        }
+    }
+
+    @Test
+    public void matchesSingleProcessFromParameters() throws IOException {
+        final double[] expected = getExpected();
+        for (int nSlabs = 1; nSlabs <= 3; ++nSlabs) {
+            try (SlabCoordinator coordinator = SlabCoordinator.newInstance(0.4, NT, 0.1, 2, 0.025, 0.005, 0.05, 42,
+                    nSlabs, 1)) {
+                assertMatches(expected, coordinator.run(STEPS, STEPS, NLS));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherIntegrators() throws IOException {
+        Simulation sim = Simulation.newInstance(0.4, NT, 0.1, 2, 0.025, 0.005, 0.05, 42, new HeunIntegrator());
+        try {
+            SlabCoordinator.newInstance(sim, 2, 1)
+                           .close();
+        } finally {
+            sim.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherNoise() throws IOException {
+        Simulation sim = newSimulation();
+        sim.setNoiseSource(new CounterNoise(43));
+        try {
+            SlabCoordinator.newInstance(sim, 2, 1)
+                           .close();
+        } finally {
+            sim.close();
+        }
+    }
+}
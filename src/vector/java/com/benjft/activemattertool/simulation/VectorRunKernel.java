@@ -0,0 +1,97 @@
+package com.benjft.activemattertool.simulation;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Finds collisions a vector of particles at a time, with the interaction masked off for pairs out of contact instead of
+ * branching on each pair. The deltas of the run are updated a whole vector at a time, while the pushes on the first
+ * particle are added one lane at a time in order, so the result is the same as the scalar loop to the last bit.
+ * Particles left over at the end of the run are handled by the scalar loop. Each kernel holds the pushes of one vector,
+ * so must only be used by one thread at a time.
+ */
+class VectorRunKernel implements RunKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // the pushes of one vector, to be added one lane at a time
+    private final double[] pushX = new double[LANES], pushY = new double[LANES];
+
+    /**
+     * @return the number of lanes in a vector, as runs shorter than one vector would be handled by the scalar loop
+     */
+    @Override
+    public int getMinimumRun() {
+        return LANES;
+    }
+
+    @Override
+    public int apply(double[] xs, double[] ys, double[] deltaX, double[] deltaY, int idx1, int from, int to,
+                     double shiftX, double shiftY, double k) {
+        final double x1 = xs[idx1], y1 = ys[idx1];
+        double sumX = deltaX[idx1], sumY = deltaY[idx1];
+        int interactions = 0;
+
+        int pos = from;
+        final double[] pushX = this.pushX, pushY = this.pushY;
+        for (final int bound = to - LANES; pos <= bound; pos += LANES) {
+            // rounded in the same order as the scalar loop
+            DoubleVector dX = DoubleVector.fromArray(SPECIES, xs, pos)
+                                          .add(shiftX)
+                                          .sub(x1);
+            DoubleVector dY = DoubleVector.fromArray(SPECIES, ys, pos)
+                                          .add(shiftY)
+                                          .sub(y1);
+            DoubleVector r2 = dX.mul(dX)
+                                .add(dY.mul(dY));
+            VectorMask<Double> contact = r2.lt(1)
+                                           .and(r2.compare(VectorOperators.NE, 0));
+            if (!contact.anyTrue()) continue;
+
+            DoubleVector r = r2.lanewise(VectorOperators.SQRT);
+            // pairs out of contact get no force, which also discards the division by zero of coincident particles
+            DoubleVector f = r.neg()
+                              .add(1)
+                              .mul(-k)
+                              .div(r);
+            DoubleVector fX = DoubleVector.zero(SPECIES)
+                                          .blend(f.mul(dX), contact);
+            DoubleVector fY = DoubleVector.zero(SPECIES)
+                                          .blend(f.mul(dY), contact);
+            DoubleVector.fromArray(SPECIES, deltaX, pos)
+                        .sub(fX)
+                        .intoArray(deltaX, pos);
+            DoubleVector.fromArray(SPECIES, deltaY, pos)
+                        .sub(fY)
+                        .intoArray(deltaY, pos);
+            fX.intoArray(pushX, 0);
+            fY.intoArray(pushY, 0);
+            for (long lanes = contact.toLong(); lanes != 0; lanes &= lanes - 1) {
+                final int lane = Long.numberOfTrailingZeros(lanes);
+                sumX += pushX[lane];
+                sumY += pushY[lane];
+                ++interactions;
+            }
+        }
+
+        for (; pos < to; ++pos) {
+            double dX = shiftX + xs[pos] - x1;
+            double dY = shiftY + ys[pos] - y1;
+            double r = dX * dX + dY * dY;
+            if (r < 1 && r != 0) {
+                r = Math.sqrt(r);
+                double f = -k * (1 - r) / r;
+                sumX += f * dX;
+                sumY += f * dY;
+                deltaX[pos] -= f * dX;
+                deltaY[pos] -= f * dY;
+                ++interactions;
+            }
+        }
+        deltaX[idx1] = sumX;
+        deltaY[idx1] = sumY;
+        return interactions;
+    }
+}